@@ -0,0 +1,195 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.logging.LogUtils;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of file checksums, keyed by path and invalidated whenever the size, modification time or
+ * file key of the file changes.
+ */
+public class ChecksumCache {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Gson GSON = new GsonBuilder().create();
+    public static final String FILE_NAME = ".spl-hashcache";
+    // Bumped whenever the way checksums are computed changes, so that stale entries are discarded
+    private static final int VERSION = 2;
+
+    private final Path cacheFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    private ChecksumCache(final Path cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public static ChecksumCache load(final Path directory) {
+        final ChecksumCache cache = new ChecksumCache(directory.resolve(FILE_NAME));
+        if (!Files.exists(cache.cacheFile)) {
+            return cache;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(cache.cacheFile, StandardCharsets.UTF_8)) {
+            Contents.CODEC.parse(JsonOps.INSTANCE, JsonParser.parseReader(reader)).result()
+                    .filter(contents -> contents.version() == VERSION)
+                    .ifPresentOrElse(
+                            contents -> contents.entries().forEach(entry -> cache.entries.put(entry.path(), entry)),
+                            () -> LOGGER.info("Discarding outdated or malformed checksum cache {}", cache.cacheFile)
+                    );
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read checksum cache {}, it will be rebuilt", cache.cacheFile, e);
+        }
+        return cache;
+    }
+
+    @Nullable
+    public HashCode computeChecksumFor(final Path file) {
+        final BasicFileAttributes attributes = readAttributes(file);
+        if (attributes == null) {
+            return null;
+        }
+        final String key = key(file);
+        final Entry entry = entries.get(key);
+        if (entry != null && entry.matches(attributes)) {
+            return entry.checksum();
+        }
+        final HashCode checksum = FileChecksumValidator.computeChecksumFor(file);
+        if (checksum != null) {
+            put(key, attributes, checksum);
+        }
+        return checksum;
+    }
+
+    /**
+     * @return the legacy digest of the file, which is kept alongside its SHA-256 so that it is only computed again once
+     * the file changes
+     */
+    @Nullable
+    public HashCode computeLegacyChecksumFor(final Path file) {
+        final HashCode checksum = computeChecksumFor(file);
+        if (checksum == null) {
+            return null;
+        }
+        final String key = key(file);
+        final Entry entry = entries.get(key);
+        if (entry != null && entry.legacyChecksum().isPresent() && entry.checksum().equals(checksum)) {
+            return entry.legacyChecksum().get();
+        }
+        final HashCode legacyChecksum = FileChecksumValidator.computeLegacyChecksumFor(file);
+        if (legacyChecksum != null && entry != null && entry.checksum().equals(checksum)) {
+            entries.put(key, entry.withLegacyChecksum(legacyChecksum));
+            dirty = true;
+        }
+        return legacyChecksum;
+    }
+
+    /**
+     * Records a checksum that was computed elsewhere, such as while the file was being downloaded.
+     */
+    public void put(final Path file, final HashCode checksum) {
+        final BasicFileAttributes attributes = readAttributes(file);
+        if (attributes != null) {
+            put(key(file), attributes, checksum);
+        }
+    }
+
+    public Map<Path, HashCode> computeChecksumsFor(final Collection<Path> files) {
+        return FileChecksumValidator.computeChecksumsFor(files, this::computeChecksumFor);
+    }
+
+    public Map<Path, HashCode> computeLegacyChecksumsFor(final Collection<Path> files) {
+        return FileChecksumValidator.computeChecksumsFor(files, this::computeLegacyChecksumFor);
+    }
+
+    private void put(final String key, final BasicFileAttributes attributes, final HashCode checksum) {
+        entries.put(key, new Entry(key, attributes.size(), attributes.lastModifiedTime().toMillis(), describeFileKey(attributes), checksum, Optional.empty()));
+        dirty = true;
+    }
+
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        entries.values().removeIf(entry -> !Files.exists(Path.of(entry.path())));
+
+        final JsonElement json = Contents.CODEC.encodeStart(JsonOps.INSTANCE, new Contents(VERSION, List.copyOf(entries.values()))).result().orElseThrow();
+        final Path tempFile = cacheFile.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                GSON.toJson(json, writer);
+            }
+            DirHandler.replaceFile(tempFile, cacheFile);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save checksum cache {}", cacheFile, e);
+        }
+    }
+
+    private static String key(final Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    @Nullable
+    private static BasicFileAttributes readAttributes(final Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String describeFileKey(final BasicFileAttributes attributes) {
+        return Objects.toString(attributes.fileKey(), "");
+    }
+
+    private record Contents(int version, List<Entry> entries) {
+        private static final Codec<Contents> CODEC = RecordCodecBuilder.create(i -> i.group(
+                Codec.INT.fieldOf("version").forGetter(Contents::version),
+                Entry.CODEC.listOf().fieldOf("entries").forGetter(Contents::entries)
+        ).apply(i, Contents::new));
+    }
+
+    private record Entry(String path, long size, long lastModified, String fileKey, HashCode checksum, Optional<HashCode> legacyChecksum) {
+        private static final Codec<HashCode> HASH_CODE_CODEC = Codec.STRING.xmap(HashCode::fromString, HashCode::toString);
+
+        private static final Codec<Entry> CODEC = RecordCodecBuilder.create(i -> i.group(
+                Codec.STRING.fieldOf("path").forGetter(Entry::path),
+                Codec.LONG.fieldOf("size").forGetter(Entry::size),
+                Codec.LONG.fieldOf("lastModified").forGetter(Entry::lastModified),
+                Codec.STRING.fieldOf("fileKey").forGetter(Entry::fileKey),
+                HASH_CODE_CODEC.fieldOf("checksum").forGetter(Entry::checksum),
+                HASH_CODE_CODEC.optionalFieldOf("legacyChecksum").forGetter(Entry::legacyChecksum)
+        ).apply(i, Entry::new));
+
+        private Entry withLegacyChecksum(final HashCode legacyChecksum) {
+            return new Entry(path, size, lastModified, fileKey, checksum, Optional.of(legacyChecksum));
+        }
+
+        private boolean matches(final BasicFileAttributes attributes) {
+            return size == attributes.size()
+                    && lastModified == attributes.lastModifiedTime().toMillis()
+                    && fileKey.equals(describeFileKey(attributes));
+        }
+    }
+}
@@ -3,8 +3,10 @@ package cpw.mods.forge.serverpacklocator;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 public class DirHandler {
     public static Path createOrGetDirectory(final Path root, final String name) {
@@ -30,6 +32,29 @@ public class DirHandler {
         }
     }
 
+    /**
+     * Moves a file over the target, atomically where the file system supports it.
+     */
+    public static void replaceFile(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Hard links the source file to the target, copying it instead where links aren't supported.
+     */
+    public static void linkOrCopy(final Path source, final Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Hard links don't work across file systems, so fall back to a plain copy
+            Files.copy(source, target);
+        }
+    }
+
     @Nullable
     public static Path resolveDirectChild(final Path root, final String name) {
         final Path file = Path.of(name);
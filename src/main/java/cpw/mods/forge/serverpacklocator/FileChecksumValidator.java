@@ -9,20 +9,66 @@ import org.slf4j.Logger;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
 
 public class FileChecksumValidator {
     private static final Logger LOGGER = LogUtils.getLogger();
 
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int LEGACY_BUFFER_SIZE = 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static final ForkJoinPool HASHING_POOL = new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors()), pool -> {
+        final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("ServerPackLocator Hashing - " + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }, null, false);
+
     @Nullable
     public static HashCode computeChecksumFor(Path file) {
         if (!Files.exists(file)) {
             return null;
         }
+        // Reads go through a large direct buffer rather than a memory mapping, as mapped files can't be replaced on
+        // Windows until the mapping is garbage collected
         Hasher hasher = Hashing.sha256().newHasher();
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                hasher.putBytes(buffer.flip());
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to compute hash for {}", file, e);
+            return null;
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * The digest used by servers from before {@link ServerManifest#FEATURE_SHA256}, which hashed every 1 KB read in
+     * full, so a short final read also hashed whatever was left in the buffer from the read before it.
+     */
+    @Nullable
+    public static HashCode computeLegacyChecksumFor(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Hasher hasher = Hashing.sha256().newHasher();
+        ByteBuffer buffer = ByteBuffer.allocate(LEGACY_BUFFER_SIZE);
         try (SeekableByteChannel channel = Files.newByteChannel(file)) {
             while (channel.read(buffer) > 0) {
                 hasher.putBytes(buffer.rewind());
@@ -34,4 +80,26 @@ public class FileChecksumValidator {
         }
         return hasher.hash();
     }
+
+    /**
+     * Computes checksums for many files at once on a bounded pool. Files which could not be hashed are left out of
+     * the result.
+     */
+    public static <T> Map<T, HashCode> computeChecksumsFor(final Collection<T> files, final Function<T, HashCode> hashFunction) {
+        final Map<T, HashCode> checksums = new ConcurrentHashMap<>();
+        try {
+            HASHING_POOL.submit(() -> files.parallelStream().forEach(file -> {
+                final HashCode checksum = hashFunction.apply(file);
+                if (checksum != null) {
+                    checksums.put(file, checksum);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing checksums", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to compute checksums", e.getCause());
+        }
+        return checksums;
+    }
 }
@@ -0,0 +1,147 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.logging.LogUtils;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraftforge.forgespi.language.IModInfo;
+import net.minecraftforge.forgespi.locating.IModFile;
+import org.apache.maven.artifact.versioning.ArtifactVersion;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of the metadata we need from each mod file, keyed by the file's checksum, so that unchanged
+ * jars don't have their mod list parsed again on every launch.
+ */
+public class ModMetadataIndex {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Gson GSON = new GsonBuilder().create();
+    public static final String FILE_NAME = ".spl-modindex";
+    // Bumped whenever the stored metadata changes meaning, so that stale entries are discarded
+    private static final int VERSION = 1;
+
+    private final Path indexFile;
+    private final Map<HashCode, Entry> entries = new ConcurrentHashMap<>();
+    // Only entries which were used since loading are saved, so that the index doesn't grow forever
+    private final Set<HashCode> used = ConcurrentHashMap.newKeySet();
+    private volatile boolean dirty;
+
+    private ModMetadataIndex(final Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public static ModMetadataIndex load(final Path directory) {
+        final ModMetadataIndex index = new ModMetadataIndex(directory.resolve(FILE_NAME));
+        if (!Files.exists(index.indexFile)) {
+            return index;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(index.indexFile, StandardCharsets.UTF_8)) {
+            Contents.CODEC.parse(JsonOps.INSTANCE, JsonParser.parseReader(reader)).result()
+                    .filter(contents -> contents.version() == VERSION)
+                    .ifPresentOrElse(
+                            contents -> contents.entries().forEach(entry -> index.entries.put(entry.checksum(), entry)),
+                            () -> LOGGER.info("Discarding outdated or malformed mod metadata index {}", index.indexFile)
+                    );
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read mod metadata index {}, it will be rebuilt", index.indexFile, e);
+        }
+        return index;
+    }
+
+    /**
+     * Looks up the metadata of a mod file, reading it from the file if we haven't seen its contents before. This is
+     * safe to call from several threads at once.
+     *
+     * @param checksum the checksum of the file, or {@code null} if it could not be computed, in which case the
+     *                 metadata is read but not remembered
+     */
+    public ModMetadata get(final IModFile file, @Nullable final HashCode checksum) {
+        if (checksum == null) {
+            return read(file);
+        }
+        used.add(checksum);
+        final Entry cached = entries.get(checksum);
+        if (cached != null && cached.metadata().type() == file.getType()) {
+            return cached.metadata();
+        }
+        // Parsing is done outside of the map, so that slow jars don't hold up lookups of other files
+        final ModMetadata metadata = read(file);
+        entries.put(checksum, new Entry(checksum, metadata));
+        dirty = true;
+        return metadata;
+    }
+
+    private static ModMetadata read(final IModFile file) {
+        if (file.getType() != IModFile.Type.MOD) {
+            return new ModMetadata(file.getFileName(), "", file.getType());
+        }
+        final IModInfo rootMod = PackBuilder.getModInfos(file).get(0);
+        return new ModMetadata(rootMod.getModId(), rootMod.getVersion().toString(), file.getType());
+    }
+
+    public synchronized void save() {
+        if (!dirty && used.size() == entries.size()) {
+            return;
+        }
+        dirty = false;
+        entries.keySet().retainAll(used);
+
+        final JsonElement json = Contents.CODEC.encodeStart(JsonOps.INSTANCE, new Contents(VERSION, List.copyOf(entries.values()))).result().orElseThrow();
+        final Path tempFile = indexFile.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                GSON.toJson(json, writer);
+            }
+            DirHandler.replaceFile(tempFile, indexFile);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save mod metadata index {}", indexFile, e);
+        }
+    }
+
+    private record Contents(int version, List<Entry> entries) {
+        private static final Codec<Contents> CODEC = RecordCodecBuilder.create(i -> i.group(
+                Codec.INT.fieldOf("version").forGetter(Contents::version),
+                Entry.CODEC.listOf().fieldOf("entries").forGetter(Contents::entries)
+        ).apply(i, Contents::new));
+    }
+
+    private record Entry(HashCode checksum, ModMetadata metadata) {
+        private static final Codec<HashCode> HASH_CODE_CODEC = Codec.STRING.xmap(HashCode::fromString, HashCode::toString);
+        private static final Codec<IModFile.Type> TYPE_CODEC = Codec.STRING.xmap(IModFile.Type::valueOf, IModFile.Type::name);
+
+        private static final Codec<Entry> CODEC = RecordCodecBuilder.create(i -> i.group(
+                HASH_CODE_CODEC.fieldOf("checksum").forGetter(Entry::checksum),
+                Codec.STRING.fieldOf("rootModId").forGetter(entry -> entry.metadata().rootModId()),
+                Codec.STRING.fieldOf("version").forGetter(entry -> entry.metadata().version()),
+                TYPE_CODEC.fieldOf("type").forGetter(entry -> entry.metadata().type())
+        ).apply(i, (checksum, rootModId, version, type) -> new Entry(checksum, new ModMetadata(rootModId, version, type))));
+    }
+
+    /**
+     * @param rootModId the id of the first mod in the file, or the file name if it isn't a mod
+     * @param version   the version of the first mod in the file, or empty if it isn't a mod
+     */
+    public record ModMetadata(String rootModId, String version, IModFile.Type type) {
+        public ArtifactVersion artifactVersion() {
+            return new DefaultArtifactVersion(version);
+        }
+    }
+}
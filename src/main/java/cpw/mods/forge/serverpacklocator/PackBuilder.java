@@ -1,16 +1,16 @@
 package cpw.mods.forge.serverpacklocator;
 
+import com.google.common.hash.HashCode;
 import com.mojang.logging.LogUtils;
 import cpw.mods.modlauncher.api.LamdbaExceptionUtils;
 import net.minecraftforge.forgespi.language.IModFileInfo;
 import net.minecraftforge.forgespi.language.IModInfo;
 import net.minecraftforge.forgespi.locating.IModFile;
-import org.apache.maven.artifact.versioning.ArtifactVersion;
 import org.slf4j.Logger;
 
-import javax.annotation.Nullable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -18,46 +18,69 @@ import java.util.stream.Stream;
 public class PackBuilder {
     private static final Logger LOGGER = LogUtils.getLogger();
 
-    private static Map<IModFile, IModFileInfo> infos = Map.of();
-    @Nullable
-    private static Field modInfoParser;
-    @Nullable
-    private static Method modFileParser;
-
     private final Set<String> excludedModIds;
+    private final ChecksumCache checksumCache;
+    private final ModMetadataIndex metadataIndex;
 
-    public PackBuilder(final Set<String> excludedModIds) {
+    public PackBuilder(final Set<String> excludedModIds, final ChecksumCache checksumCache, final ModMetadataIndex metadataIndex) {
         this.excludedModIds = excludedModIds;
+        this.checksumCache = checksumCache;
+        this.metadataIndex = metadataIndex;
     }
 
+    /**
+     * Parses the mod list of a file. This is slow, so {@link ModMetadataIndex} should be used where possible.
+     */
     public static List<IModInfo> getModInfos(final IModFile modFile) {
-        if (modInfoParser == null) {
-            final Class<?> mfClass = LamdbaExceptionUtils.uncheck(() -> Class.forName("net.minecraftforge.fml.loading.moddiscovery.ModFile"));
-            modInfoParser = LamdbaExceptionUtils.uncheck(() -> mfClass.getDeclaredField("parser"));
-            modInfoParser.setAccessible(true);
-            final Class<?> mfpClass = LamdbaExceptionUtils.uncheck(() -> Class.forName("net.minecraftforge.fml.loading.moddiscovery.ModFileParser"));
-            modFileParser = Arrays.stream(mfpClass.getMethods()).filter(m -> m.getName().equals("readModList")).findAny().orElseThrow(() -> new RuntimeException("BARFY!"));
-            infos = new HashMap<>();
-        }
-        final IModFileInfo info = infos.computeIfAbsent(modFile, LamdbaExceptionUtils.rethrowFunction(junk -> (IModFileInfo) modFileParser.invoke(null, modFile, modInfoParser.get(modFile))));
+        final IModFileInfo info = LamdbaExceptionUtils.uncheck(() -> (IModFileInfo) Parser.MOD_FILE_PARSER.invoke(null, modFile, Parser.MOD_INFO_PARSER.get(modFile)));
         return info.getMods();
     }
 
-    public static String getRootModId(final IModFile modFile) {
-        return modFile.getType() == IModFile.Type.MOD ? getModInfos(modFile).get(0).getModId() : modFile.getFileName();
+    /**
+     * Checksums the given files and looks up their metadata. Only jars which we haven't seen before are parsed, and
+     * those are parsed in parallel.
+     */
+    public Map<IModFile, ModMetadataIndex.ModMetadata> readMetadata(final List<IModFile> files) {
+        final Map<Path, HashCode> checksums = checksumCache.computeChecksumsFor(files.stream().map(IModFile::getFilePath).toList());
+        return files.parallelStream()
+                .collect(Collectors.toConcurrentMap(file -> file, file -> metadataIndex.get(file, checksums.get(file.getFilePath())), (first, second) -> first));
     }
 
     public List<IModFile> buildModList(final List<IModFile> files) {
-        final Map<String, List<IModFile>> filesByRootId = files.stream().collect(Collectors.groupingBy(PackBuilder::getRootModId));
-        excludedModIds.forEach(filesByRootId::remove);
-
-        return filesByRootId.entrySet().stream()
-                .flatMap(this::selectNewest)
+        final Map<IModFile, ModMetadataIndex.ModMetadata> metadata = readMetadata(files);
+        return groupByRootModId(files, metadata).entrySet().stream()
+                .flatMap(entry -> selectNewest(entry.getKey(), entry.getValue(), metadata))
                 .toList();
     }
 
-    private Stream<IModFile> selectNewest(final Map.Entry<String, List<IModFile>> entry) {
-        List<IModFile> files = entry.getValue();
+    /**
+     * Selects the newest file of each mod for both the manifest and the server in a single pass. The manifest picks
+     * from every file, while the server only picks from its own files, as it can't load client-only mods.
+     *
+     * @param metadata the metadata of every server and client file, from {@link #readMetadata}
+     */
+    public ModLists buildModLists(final List<IModFile> serverFiles, final List<IModFile> clientFiles, final Map<IModFile, ModMetadataIndex.ModMetadata> metadata) {
+        final Set<IModFile> serverFileSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        serverFileSet.addAll(serverFiles);
+
+        final List<IModFile> allFiles = new ArrayList<>(serverFiles);
+        allFiles.addAll(clientFiles);
+        final List<IModFile> manifestFiles = new ArrayList<>();
+        final List<IModFile> serverModFiles = new ArrayList<>();
+        groupByRootModId(allFiles, metadata).forEach((modId, files) -> {
+            selectNewest(modId, files, metadata).forEach(manifestFiles::add);
+            selectNewest(modId, files.stream().filter(serverFileSet::contains).toList(), metadata).forEach(serverModFiles::add);
+        });
+        return new ModLists(List.copyOf(manifestFiles), List.copyOf(serverModFiles));
+    }
+
+    private Map<String, List<IModFile>> groupByRootModId(final List<IModFile> files, final Map<IModFile, ModMetadataIndex.ModMetadata> metadata) {
+        final Map<String, List<IModFile>> filesByRootId = files.stream().collect(Collectors.groupingBy(file -> metadata.get(file).rootModId()));
+        excludedModIds.forEach(filesByRootId::remove);
+        return filesByRootId;
+    }
+
+    private Stream<IModFile> selectNewest(final String modId, final List<IModFile> files, final Map<IModFile, ModMetadataIndex.ModMetadata> metadata) {
         if (files.isEmpty()) {
             return Stream.empty();
         } else if (files.size() == 1) {
@@ -67,16 +90,32 @@ public class PackBuilder {
             return files.stream();
         }
 
-        LOGGER.debug("Selecting newest by artifact version for modid {}", entry.getKey());
+        LOGGER.debug("Selecting newest by artifact version for modid {}", modId);
         IModFile newestFile = files.stream()
-                .max(Comparator.comparing(PackBuilder::getRootVersion))
+                .max(Comparator.comparing(file -> metadata.get(file).artifactVersion()))
                 .orElseThrow();
-        LOGGER.debug("Newest file by artifact version for modid {} is {} ({})", entry.getKey(), newestFile.getFileName(), getRootVersion(newestFile));
+        LOGGER.debug("Newest file by artifact version for modid {} is {} ({})", modId, newestFile.getFileName(), metadata.get(newestFile).version());
         return Stream.of(newestFile);
     }
 
-    private static ArtifactVersion getRootVersion(IModFile file) {
-        return getModInfos(file).get(0).getVersion();
+    /**
+     * @param manifestFiles the files to serve to clients
+     * @param serverFiles   the files for the server itself to load
+     */
+    public record ModLists(List<IModFile> manifestFiles, List<IModFile> serverFiles) {
     }
 
+    // Looked up on first use, which the class loader makes safe when several threads parse at once
+    private static class Parser {
+        private static final Field MOD_INFO_PARSER;
+        private static final Method MOD_FILE_PARSER;
+
+        static {
+            final Class<?> mfClass = LamdbaExceptionUtils.uncheck(() -> Class.forName("net.minecraftforge.fml.loading.moddiscovery.ModFile"));
+            MOD_INFO_PARSER = LamdbaExceptionUtils.uncheck(() -> mfClass.getDeclaredField("parser"));
+            MOD_INFO_PARSER.setAccessible(true);
+            final Class<?> mfpClass = LamdbaExceptionUtils.uncheck(() -> Class.forName("net.minecraftforge.fml.loading.moddiscovery.ModFileParser"));
+            MOD_FILE_PARSER = Arrays.stream(mfpClass.getMethods()).filter(m -> m.getName().equals("readModList")).findAny().orElseThrow(() -> new RuntimeException("BARFY!"));
+        }
+    }
 }
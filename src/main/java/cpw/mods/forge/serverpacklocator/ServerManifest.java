@@ -19,13 +19,39 @@ import java.nio.file.Path;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Optional;
 
-public record ServerManifest(String forgeVersion, List<ModFileData> files) {
+/**
+ * @param mirrors base URLs of other hosts which serve the files in this manifest at {@code <mirror>/<sha256>}, and
+ *                which clients may download from instead of this server
+ */
+public record ServerManifest(String forgeVersion, List<ModFileData> files, List<String> features, List<String> mirrors) {
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
 
+    /**
+     * The server can serve files by their checksum from {@code /blobs/<sha256>}
+     */
+    public static final String FEATURE_BLOBS = "blobs";
+    /**
+     * The server can serve deltas between file versions from {@code /deltas/<old sha256>/<new sha256>}
+     */
+    public static final String FEATURE_DELTAS = "deltas";
+    /**
+     * The server can stream every file in the manifest as a single tar archive from {@code /pack}
+     */
+    public static final String FEATURE_PACK = "pack";
+    /**
+     * Each file lists its plain SHA-256 digest under {@code sha256}. The {@code checksum} field always holds the legacy
+     * digest from {@link FileChecksumValidator#computeLegacyChecksumFor}, as older clients compare against it. Older
+     * servers list only that, and have none of the other features
+     */
+    public static final String FEATURE_SHA256 = "sha256";
+
     public static final Codec<ServerManifest> CODEC = RecordCodecBuilder.create(i -> i.group(
             Codec.STRING.fieldOf("forgeVersion").forGetter(ServerManifest::forgeVersion),
-            ModFileData.CODEC.listOf().fieldOf("files").forGetter(ServerManifest::files)
+            ModFileData.CODEC.listOf().fieldOf("files").forGetter(ServerManifest::files),
+            Codec.STRING.listOf().optionalFieldOf("features", List.of()).forGetter(ServerManifest::features),
+            Codec.STRING.listOf().optionalFieldOf("mirrors", List.of()).forGetter(ServerManifest::mirrors)
     ).apply(i, ServerManifest::new));
 
     public static DataResult<ServerManifest> parse(final String string) {
@@ -38,6 +64,14 @@ public record ServerManifest(String forgeVersion, List<ModFileData> files) {
         return GSON.toJson(json);
     }
 
+    public boolean hasFeature(final String feature) {
+        return features.contains(feature);
+    }
+
+    public boolean usesLegacyChecksums() {
+        return !hasFeature(FEATURE_SHA256);
+    }
+
     public static DataResult<ServerManifest> load(final Path path) {
         try (BufferedReader json = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
             return CODEC.parse(JsonOps.INSTANCE, JsonParser.parseReader(json));
@@ -54,7 +88,11 @@ public record ServerManifest(String forgeVersion, List<ModFileData> files) {
         }
     }
 
-    public record ModFileData(String rootModId, HashCode checksum, String fileName) {
+    /**
+     * @param checksum       the plain SHA-256 digest if the server listed one, otherwise the legacy digest
+     * @param legacyChecksum the legacy digest, if the file also has a SHA-256 digest
+     */
+    public record ModFileData(String rootModId, HashCode checksum, String fileName, @Nullable HashCode legacyChecksum) {
         private static final Codec<HashCode> HASH_CODE_CODEC = Codec.STRING.comapFlatMap(
                 string -> {
                     try {
@@ -66,17 +104,27 @@ public record ServerManifest(String forgeVersion, List<ModFileData> files) {
                 hash -> hash.toString().toUpperCase(Locale.ROOT)
         );
 
+        // Older clients read only "checksum", and ignore the "sha256" field they don't know
         public static final Codec<ModFileData> CODEC = RecordCodecBuilder.create(i -> i.group(
                 Codec.STRING.fieldOf("rootModId").forGetter(ModFileData::rootModId),
-                HASH_CODE_CODEC.fieldOf("checksum").forGetter(ModFileData::checksum),
-                Codec.STRING.fieldOf("fileName").forGetter(ModFileData::fileName)
-        ).apply(i, ModFileData::new));
+                HASH_CODE_CODEC.fieldOf("checksum").forGetter(data -> data.legacyChecksum != null ? data.legacyChecksum : data.checksum),
+                Codec.STRING.fieldOf("fileName").forGetter(ModFileData::fileName),
+                HASH_CODE_CODEC.optionalFieldOf("sha256").forGetter(data -> data.legacyChecksum != null ? Optional.of(data.checksum) : Optional.empty())
+        ).apply(i, (rootModId, checksum, fileName, sha256) -> sha256
+                .map(sha -> new ModFileData(rootModId, sha, fileName, checksum))
+                .orElseGet(() -> new ModFileData(rootModId, checksum, fileName))));
+
+        public ModFileData(final String rootModId, final HashCode checksum, final String fileName) {
+            this(rootModId, checksum, fileName, null);
+        }
     }
 
     public static class Builder {
         @Nullable
         private String forgeVersion;
         private final ImmutableList.Builder<ModFileData> mods = ImmutableList.builder();
+        private final ImmutableList.Builder<String> features = ImmutableList.builder();
+        private final ImmutableList.Builder<String> mirrors = ImmutableList.builder();
 
         public Builder setForgeVersion(String version) {
             forgeVersion = version;
@@ -88,8 +136,23 @@ public record ServerManifest(String forgeVersion, List<ModFileData> files) {
             return this;
         }
 
+        public Builder add(final String rootId, final HashCode checksum, final String fileName, final HashCode legacyChecksum) {
+            mods.add(new ModFileData(rootId, checksum, fileName, legacyChecksum));
+            return this;
+        }
+
+        public Builder addFeature(final String feature) {
+            features.add(feature);
+            return this;
+        }
+
+        public Builder addMirror(final String url) {
+            mirrors.add(url);
+            return this;
+        }
+
         public ServerManifest build() {
-            return new ServerManifest(Objects.requireNonNull(forgeVersion, "Forge version not set"), mods.build());
+            return new ServerManifest(Objects.requireNonNull(forgeVersion, "Forge version not set"), mods.build(), features.build(), mirrors.build());
         }
     }
 }
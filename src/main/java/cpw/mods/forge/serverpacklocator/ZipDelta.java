@@ -0,0 +1,264 @@
+package cpw.mods.forge.serverpacklocator;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Zip-entry-level binary deltas between two versions of a jar.
+ * <p>
+ * A delta rebuilds the new jar byte for byte: the compressed data of every entry that is unchanged from the old
+ * jar is copied out of it, and everything else (changed entries, local headers, the central directory) is sent
+ * literally. Local headers are always sent, as they carry timestamps that differ between otherwise identical builds.
+ */
+public final class ZipDelta {
+    private static final long MAGIC = 0x53504C44454C5441L; // SPLDELTA
+    private static final int VERSION = 1;
+
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_DATA = 2;
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054B50;
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014B50;
+    private static final int LOCAL_FILE_HEADER = 0x04034B50;
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ZipDelta() {
+    }
+
+    /**
+     * Writes a delta which rebuilds {@code newFile} from {@code oldFile}.
+     *
+     * @return false if either file is not a zip that can be diffed, in which case nothing is written
+     */
+    public static boolean compute(final Path oldFile, final Path newFile, final Path deltaFile) throws IOException {
+        try (FileChannel oldChannel = FileChannel.open(oldFile, StandardOpenOption.READ);
+             FileChannel newChannel = FileChannel.open(newFile, StandardOpenOption.READ)) {
+            final List<Entry> oldEntries = readEntries(oldChannel);
+            final List<Entry> newEntries = readEntries(newChannel);
+            if (oldEntries == null || newEntries == null) {
+                return false;
+            }
+            final Map<String, Entry> oldEntriesByName = new HashMap<>();
+            oldEntries.forEach(entry -> oldEntriesByName.putIfAbsent(entry.name(), entry));
+
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(deltaFile)))) {
+                final OpWriter writer = new OpWriter(output, newChannel);
+                output.writeLong(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(newChannel.size());
+
+                long position = 0;
+                for (final Entry entry : newEntries) {
+                    final Entry oldEntry = oldEntriesByName.get(entry.name());
+                    if (oldEntry != null && oldEntry.crc() == entry.crc() && oldEntry.dataLength() == entry.dataLength()
+                            && regionsEqual(oldChannel, oldEntry.dataStart(), newChannel, entry.dataStart(), entry.dataLength())) {
+                        writer.data(position, entry.dataStart() - position);
+                        writer.copy(oldEntry.dataStart(), entry.dataLength());
+                        position = entry.dataStart() + entry.dataLength();
+                    }
+                }
+                writer.data(position, newChannel.size() - position);
+                writer.end();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds a file from its old version and a delta produced by {@link #compute}.
+     */
+    public static void apply(final Path oldFile, final InputStream delta, final Path outputFile) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(delta));
+        if (input.readLong() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Not a supported delta");
+        }
+        final long targetLength = input.readLong();
+
+        try (FileChannel oldChannel = FileChannel.open(oldFile, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                final byte op = input.readByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    final long offset = input.readLong();
+                    final long length = input.readLong();
+                    long copied = 0;
+                    while (copied < length) {
+                        final long transferred = oldChannel.transferTo(offset + copied, length - copied, output);
+                        if (transferred <= 0) {
+                            throw new EOFException("Delta refers past the end of " + oldFile.getFileName());
+                        }
+                        copied += transferred;
+                    }
+                } else if (op == OP_DATA) {
+                    long remaining = input.readLong();
+                    while (remaining > 0) {
+                        final int read = (int) Math.min(buffer.length, remaining);
+                        input.readFully(buffer, 0, read);
+                        output.write(ByteBuffer.wrap(buffer, 0, read));
+                        remaining -= read;
+                    }
+                } else {
+                    throw new IOException("Unknown delta operation " + op);
+                }
+            }
+            if (output.size() != targetLength) {
+                throw new IOException("Delta produced " + output.size() + " bytes, expected " + targetLength);
+            }
+        }
+    }
+
+    /**
+     * @return the entries of the zip sorted by their position in the file, or null if it is not a zip we can handle
+     */
+    @Nullable
+    private static List<Entry> readEntries(final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size < 22) {
+            return null;
+        }
+        final int tailLength = (int) Math.min(size, 22 + 0xFFFF);
+        final ByteBuffer tail = read(channel, size - tailLength, tailLength);
+        int endOfCentralDirectory = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                endOfCentralDirectory = i;
+                break;
+            }
+        }
+        if (endOfCentralDirectory == -1) {
+            return null;
+        }
+        final long centralDirectorySize = Integer.toUnsignedLong(tail.getInt(endOfCentralDirectory + 12));
+        final long centralDirectoryOffset = Integer.toUnsignedLong(tail.getInt(endOfCentralDirectory + 16));
+        if (centralDirectoryOffset == ZIP64_MARKER || centralDirectoryOffset + centralDirectorySize > size || centralDirectorySize > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        final ByteBuffer centralDirectory = read(channel, centralDirectoryOffset, (int) centralDirectorySize);
+        final List<Entry> entries = new ArrayList<>();
+        int position = 0;
+        while (position + 46 <= centralDirectorySize) {
+            if (centralDirectory.getInt(position) != CENTRAL_DIRECTORY_HEADER) {
+                return null;
+            }
+            final int crc = centralDirectory.getInt(position + 16);
+            final long compressedSize = Integer.toUnsignedLong(centralDirectory.getInt(position + 20));
+            final int nameLength = Short.toUnsignedInt(centralDirectory.getShort(position + 28));
+            final int extraLength = Short.toUnsignedInt(centralDirectory.getShort(position + 30));
+            final int commentLength = Short.toUnsignedInt(centralDirectory.getShort(position + 32));
+            final long localHeaderOffset = Integer.toUnsignedLong(centralDirectory.getInt(position + 42));
+            if (compressedSize == ZIP64_MARKER || localHeaderOffset == ZIP64_MARKER || position + 46 + nameLength > centralDirectorySize) {
+                return null;
+            }
+            final byte[] name = new byte[nameLength];
+            centralDirectory.get(position + 46, name);
+
+            final ByteBuffer localHeader = read(channel, localHeaderOffset, 30);
+            if (localHeader.getInt(0) != LOCAL_FILE_HEADER) {
+                return null;
+            }
+            final long dataStart = localHeaderOffset + 30 + Short.toUnsignedInt(localHeader.getShort(26)) + Short.toUnsignedInt(localHeader.getShort(28));
+            if (dataStart + compressedSize > centralDirectoryOffset) {
+                return null;
+            }
+            // Names are compared as raw bytes, as the encoding depends on a flag we don't need to care about
+            entries.add(new Entry(new String(name, StandardCharsets.ISO_8859_1), crc, dataStart, compressedSize));
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        entries.sort(Comparator.comparingLong(Entry::dataStart));
+        return entries;
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static boolean regionsEqual(final FileChannel first, final long firstStart, final FileChannel second, final long secondStart, final long length) throws IOException {
+        long offset = 0;
+        while (offset < length) {
+            final int chunk = (int) Math.min(BUFFER_SIZE, length - offset);
+            if (!read(first, firstStart + offset, chunk).equals(read(second, secondStart + offset, chunk))) {
+                return false;
+            }
+            offset += chunk;
+        }
+        return true;
+    }
+
+    private record Entry(String name, int crc, long dataStart, long dataLength) {
+    }
+
+    /**
+     * Coalesces adjacent operations so that runs of unchanged entries become a single copy.
+     */
+    private static class OpWriter {
+        private final DataOutputStream output;
+        private final FileChannel source;
+        private long pendingCopyOffset = -1;
+        private long pendingCopyLength;
+
+        private OpWriter(final DataOutputStream output, final FileChannel source) {
+            this.output = output;
+            this.source = source;
+        }
+
+        void copy(final long offset, final long length) throws IOException {
+            if (pendingCopyOffset != -1 && pendingCopyOffset + pendingCopyLength == offset) {
+                pendingCopyLength += length;
+                return;
+            }
+            flushCopy();
+            pendingCopyOffset = offset;
+            pendingCopyLength = length;
+        }
+
+        void data(final long position, final long length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            flushCopy();
+            output.writeByte(OP_DATA);
+            output.writeLong(length);
+            long written = 0;
+            while (written < length) {
+                final ByteBuffer chunk = read(source, position + written, (int) Math.min(BUFFER_SIZE, length - written));
+                output.write(chunk.array(), 0, chunk.limit());
+                written += chunk.limit();
+            }
+        }
+
+        void end() throws IOException {
+            flushCopy();
+            output.writeByte(OP_END);
+        }
+
+        private void flushCopy() throws IOException {
+            if (pendingCopyOffset != -1) {
+                output.writeByte(OP_COPY);
+                output.writeLong(pendingCopyOffset);
+                output.writeLong(pendingCopyLength);
+                pendingCopyOffset = -1;
+            }
+        }
+    }
+}
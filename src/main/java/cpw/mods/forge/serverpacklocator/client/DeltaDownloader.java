@@ -0,0 +1,88 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import cpw.mods.forge.serverpacklocator.ZipDelta;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Updates a mod from the version we had under the previous manifest, by applying a delta fetched from the server's
+ * {@code /deltas/<from>/<to>} rather than downloading the whole new file.
+ */
+class DeltaDownloader {
+    private static final Logger LOGGER = LogManager.getLogger();
+    static final String DELTA_FILE_SUFFIX = ".delta";
+
+    private final HttpClient client;
+    // Applying a delta rebuilds the whole jar, which must stay off the HTTP client's own threads
+    private final Executor blockingExecutor;
+    private final Path outputDir;
+
+    DeltaDownloader(final HttpClient client, final Executor blockingExecutor, final Path outputDir) {
+        this.client = client;
+        this.blockingExecutor = blockingExecutor;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * @return the version of the mod listed by the previous manifest, if we still have it intact
+     */
+    @Nullable
+    ServerManifest.ModFileData findBase(final ServerManifest previousManifest, final ServerManifest.ModFileData modFile, final Map<Path, HashCode> existingChecksums) {
+        for (final ServerManifest.ModFileData previous : previousManifest.files()) {
+            if (!previous.rootModId().equals(modFile.rootModId()) || previous.checksum().equals(modFile.checksum())) {
+                continue;
+            }
+            final Path path = DirHandler.resolveDirectChild(outputDir, previous.fileName());
+            if (path != null && previous.checksum().equals(existingChecksums.get(path))) {
+                return previous;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the new version of the mod to the given part file, which is left for the caller to verify.
+     */
+    CompletableFuture<Void> download(final String host, final ServerManifest.ModFileData base, final ServerManifest.ModFileData modFile, final Path partPath) {
+        final Path basePath = outputDir.resolve(base.fileName());
+        final Path deltaPath = partPath.resolveSibling(modFile.fileName() + DELTA_FILE_SUFFIX);
+
+        LOGGER.debug("Requesting delta for {} from {}", modFile.fileName(), base.fileName());
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(host + "/deltas/" + base.checksum() + "/" + modFile.checksum()))
+                .header("User-Agent", SimpleHttpClient.USER_AGENT)
+                .GET()
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofFile(deltaPath))
+                .thenAcceptAsync(response -> {
+                    try {
+                        if (response.statusCode() != 200) {
+                            throw new IllegalStateException("Unexpected response " + response.statusCode() + " to delta request");
+                        }
+                        try (InputStream delta = Files.newInputStream(deltaPath)) {
+                            ZipDelta.apply(basePath, delta, partPath);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        SimpleHttpClient.deleteQuietly(deltaPath);
+                    }
+                }, blockingExecutor);
+    }
+}
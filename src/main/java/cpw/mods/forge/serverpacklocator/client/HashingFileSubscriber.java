@@ -0,0 +1,117 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Writes a response body to a file while hashing it, so that a download can be verified without reading it back.
+ * When resuming, the bytes already in the file are hashed first so that the result covers the whole file.
+ */
+class HashingFileSubscriber implements HttpResponse.BodySubscriber<HashCode> {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final boolean append;
+    private final Hasher hasher = Hashing.sha256().newHasher();
+    private final CompletableFuture<HashCode> result = new CompletableFuture<>();
+    private FileChannel channel;
+    private Flow.Subscription subscription;
+
+    HashingFileSubscriber(final Path file, final boolean append) {
+        this.file = file;
+        this.append = append;
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        this.subscription = subscription;
+        try {
+            if (append) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                hashExistingContents();
+            } else {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+        } catch (IOException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    private void hashExistingContents() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = 0;
+        while (true) {
+            final int read = channel.read(buffer.clear(), position);
+            if (read < 0) {
+                break;
+            }
+            hasher.putBytes(buffer.flip());
+            position += read;
+        }
+        channel.position(position);
+    }
+
+    @Override
+    public void onNext(final List<ByteBuffer> buffers) {
+        try {
+            for (final ByteBuffer buffer : buffers) {
+                hasher.putBytes(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        result.complete(hasher.hash());
+    }
+
+    private void fail(final Throwable throwable) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throwable.addSuppressed(e);
+            }
+        }
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public CompletionStage<HashCode> getBody() {
+        return result;
+    }
+}
@@ -0,0 +1,300 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Hosts serving the files of a pack by checksum, such as the mirrors listed in its manifest or peers on the local
+ * network, along with how they have performed so far. Mirrors which have been failing rank last, and are no longer
+ * used at all once they keep failing. Otherwise mirrors we haven't measured yet are tried first so that each gets a
+ * chance, after which the fastest are preferred.
+ */
+final class Mirrors {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    // How much each completed download counts towards a mirror's measured throughput
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+    // A download is raced against another mirror once it has taken this many times as long as expected
+    private static final double HEDGE_FACTOR = 3.0;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 1000;
+    private static final long UNMEASURED_HEDGE_DELAY_MILLIS = 5000;
+    // A download only has this long to start responding before another mirror is raced against it
+    private static final long RESPONSE_HEDGE_DELAY_MILLIS = 3000;
+    private static final int MAX_RACING_MIRRORS = 2;
+
+    private final List<Mirror> mirrors = new CopyOnWriteArrayList<>();
+
+    Mirrors(final List<String> urls) {
+        urls.forEach(this::add);
+    }
+
+    synchronized Mirror add(final String url) {
+        final String baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        for (final Mirror mirror : mirrors) {
+            if (mirror.baseUrl.equals(baseUrl)) {
+                return mirror;
+            }
+        }
+        final Mirror mirror = new Mirror(baseUrl);
+        mirrors.add(mirror);
+        return mirror;
+    }
+
+    boolean isEmpty() {
+        return mirrors.isEmpty();
+    }
+
+    List<Mirror> ranked() {
+        return mirrors.stream()
+                .map(Mirror::ranking)
+                .filter(ranking -> ranking.failures() < MAX_CONSECUTIVE_FAILURES)
+                .sorted(Comparator.comparingInt(Ranking::failures)
+                        .thenComparing(Ranking::measured)
+                        .thenComparing(Comparator.comparingDouble(Ranking::score).reversed()))
+                .map(Ranking::mirror)
+                .toList();
+    }
+
+    static final class Mirror {
+        private final String baseUrl;
+        // In bytes per second, or 0 until we have downloaded from this mirror
+        private double throughput;
+        private int consecutiveFailures;
+        private int inFlight;
+
+        private Mirror(final String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        URI fileUri(final HashCode checksum) {
+            return URI.create(baseUrl + "/" + checksum);
+        }
+
+        synchronized void started() {
+            inFlight++;
+        }
+
+        synchronized void succeeded(final long bytes, final long nanos) {
+            inFlight--;
+            consecutiveFailures = 0;
+            recordThroughput(bytes, nanos);
+        }
+
+        synchronized void failed() {
+            inFlight--;
+            consecutiveFailures++;
+        }
+
+        // An abandoned download didn't fail, but without measuring it a slow mirror would be tried first forever
+        synchronized void abandoned(final long bytes, final long nanos) {
+            inFlight--;
+            recordThroughput(Math.max(bytes, 1), nanos);
+        }
+
+        private void recordThroughput(final long bytes, final long nanos) {
+            final double sample = bytes * 1.0e9 / Math.max(nanos, 1);
+            throughput = throughput == 0 ? sample : throughput + THROUGHPUT_SMOOTHING * (sample - throughput);
+        }
+
+        synchronized long hedgeDelayMillis(final long contentLength) {
+            if (throughput == 0 || contentLength < 0) {
+                return UNMEASURED_HEDGE_DELAY_MILLIS;
+            }
+            return Math.max(MIN_HEDGE_DELAY_MILLIS, (long) (HEDGE_FACTOR * contentLength * 1000 / throughput));
+        }
+
+        private synchronized Ranking ranking() {
+            // Downloads running at the same time share the mirror's bandwidth, so busy mirrors rank lower. Until it is
+            // measured, the first downloads are spread over the mirrors instead
+            final double score = throughput != 0 ? throughput / (inFlight + 1) : -inFlight;
+            return new Ranking(this, throughput != 0, score, consecutiveFailures);
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl;
+        }
+    }
+
+    private record Ranking(Mirror mirror, boolean measured, double score, int failures) {
+    }
+
+    /**
+     * Downloads a file from the given mirrors, best first. A download which is slow to respond, or much slower than its
+     * mirror's throughput so far suggests, has the next mirror raced against it, and whichever finishes first wins.
+     */
+    abstract static class Race {
+        private final ServerManifest.ModFileData modFile;
+        private final Iterator<Mirror> candidates;
+        private final Path partPath;
+        private final Path racingPartPath;
+        private final Path targetPath;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private final List<Attempt> attempts = new ArrayList<>();
+        private int running;
+        // Only one attempt at a time may resume from the usual part file, any other racing attempt starts over in its own
+        private boolean partFileInUse;
+        @Nullable
+        private Throwable lastFailure;
+
+        Race(final ServerManifest.ModFileData modFile, final List<Mirror> candidates, final Path partPath, final Path racingPartPath, final Path targetPath) {
+            this.modFile = modFile;
+            this.candidates = candidates.iterator();
+            this.partPath = partPath;
+            this.racingPartPath = racingPartPath;
+            this.targetPath = targetPath;
+        }
+
+        /**
+         * Requests the file into the given part file, calling back with its content length, or -1, once the mirror responds.
+         */
+        protected abstract CompletableFuture<HttpResponse<HashCode>> send(URI uri, Path partPath, LongConsumer onResponse);
+
+        /**
+         * Verifies the downloaded part file and moves it to the target path, off the HTTP client's threads.
+         */
+        protected abstract CompletableFuture<Void> complete(HttpResponse<HashCode> response, Path partPath);
+
+        CompletableFuture<Void> start() {
+            launchNext();
+            return result;
+        }
+
+        private void launchNext() {
+            final Attempt attempt;
+            synchronized (this) {
+                attempt = nextAttempt();
+            }
+            // Requests are sent outside the lock, as the HTTP client calls back into the race from its own threads
+            if (attempt != null) {
+                send(attempt);
+            }
+        }
+
+        @Nullable
+        private Attempt nextAttempt() {
+            if (result.isDone() || running >= MAX_RACING_MIRRORS) {
+                return null;
+            }
+            if (!candidates.hasNext()) {
+                if (running == 0) {
+                    result.completeExceptionally(lastFailure != null ? lastFailure : new IllegalStateException("No mirrors left to try"));
+                }
+                return null;
+            }
+            final Path attemptPartPath;
+            if (!partFileInUse) {
+                attemptPartPath = partPath;
+                partFileInUse = true;
+            } else {
+                attemptPartPath = racingPartPath;
+                SimpleHttpClient.deleteQuietly(attemptPartPath);
+            }
+            final Attempt attempt = new Attempt(candidates.next(), attemptPartPath, SimpleHttpClient.partFileLength(attemptPartPath));
+            attempts.add(attempt);
+            running++;
+            return attempt;
+        }
+
+        private void send(final Attempt attempt) {
+            LOGGER.debug("Requesting {} from mirror {}", modFile.fileName(), attempt.mirror);
+            attempt.mirror.started();
+            final CompletableFuture<HttpResponse<HashCode>> request = send(attempt.mirror.fileUri(modFile.checksum()), attempt.partPath,
+                    contentLength -> responded(attempt, contentLength));
+            attempt.request = request;
+            request.thenCompose(response -> complete(response, attempt.partPath))
+                    .whenComplete((unused, t) -> finished(attempt, t));
+            scheduleHedge(attempt, RESPONSE_HEDGE_DELAY_MILLIS, false);
+        }
+
+        private void responded(final Attempt attempt, final long contentLength) {
+            synchronized (this) {
+                attempt.responded = true;
+                attempt.contentLength = contentLength;
+            }
+            scheduleHedge(attempt, attempt.mirror.hedgeDelayMillis(contentLength), true);
+        }
+
+        private void scheduleHedge(final Attempt attempt, final long delayMillis, final boolean afterResponse) {
+            CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() -> hedge(attempt, afterResponse));
+        }
+
+        private void hedge(final Attempt attempt, final boolean afterResponse) {
+            synchronized (this) {
+                // Once it has responded, the timeout for the response no longer applies
+                if (attempt.finished || attempt.hedged || attempt.responded != afterResponse || result.isDone()) {
+                    return;
+                }
+                attempt.hedged = true;
+            }
+            LOGGER.debug("Download of {} from mirror {} is slow, racing another mirror against it", modFile.fileName(), attempt.mirror);
+            launchNext();
+        }
+
+        private void finished(final Attempt attempt, @Nullable final Throwable t) {
+            final List<CompletableFuture<?>> losers = new ArrayList<>();
+            synchronized (this) {
+                attempt.finished = true;
+                running--;
+                if (attempt.partPath.equals(partPath)) {
+                    partFileInUse = false;
+                }
+                final long elapsed = System.nanoTime() - attempt.startTime;
+                if (t == null) {
+                    final long bytes = attempt.contentLength >= 0 ? attempt.contentLength : SimpleHttpClient.partFileLength(targetPath) - attempt.resumedLength;
+                    attempt.mirror.succeeded(bytes, elapsed);
+                    if (result.complete(null)) {
+                        attempts.stream().filter(other -> !other.finished && other.request != null).forEach(other -> losers.add(other.request));
+                    }
+                } else if (result.isDone()) {
+                    attempt.mirror.abandoned(SimpleHttpClient.partFileLength(attempt.partPath) - attempt.resumedLength, elapsed);
+                    return;
+                } else {
+                    attempt.mirror.failed();
+                    lastFailure = t;
+                }
+            }
+            if (t == null) {
+                // Cancelling a request aborts its exchange, so the losing mirrors stop sending straight away
+                losers.forEach(request -> request.cancel(true));
+                return;
+            }
+            LOGGER.info("Failed to download {} from mirror {}", modFile.fileName(), attempt.mirror, t);
+            launchNext();
+        }
+
+        private static final class Attempt {
+            private final Mirror mirror;
+            private final Path partPath;
+            private final long resumedLength;
+            private final long startTime = System.nanoTime();
+            @Nullable
+            private volatile CompletableFuture<HttpResponse<HashCode>> request;
+            private long contentLength = -1;
+            private boolean responded;
+            private boolean hedged;
+            private boolean finished;
+
+            private Attempt(final Mirror mirror, final Path partPath, final long resumedLength) {
+                this.mirror = mirror;
+                this.partPath = partPath;
+                this.resumedLength = resumedLength;
+            }
+        }
+    }
+}
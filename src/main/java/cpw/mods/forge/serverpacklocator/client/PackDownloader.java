@@ -0,0 +1,90 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Fetches every file a new client needs from the server's {@code /pack} in a single stream, instead of one request
+ * per file.
+ */
+class PackDownloader {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final HttpClient client;
+    // Reading the pack stream blocks, which must stay off the HTTP client's own threads
+    private final Executor blockingExecutor;
+
+    PackDownloader(final HttpClient client, final Executor blockingExecutor) {
+        this.client = client;
+        this.blockingExecutor = blockingExecutor;
+    }
+
+    /**
+     * @return the files which still need to be downloaded individually, because they weren't in the pack or the pack
+     * could not be fully downloaded
+     */
+    CompletableFuture<List<ServerManifest.ModFileData>> download(final String host, final Set<String> excludedModIds, final List<ServerManifest.ModFileData> files,
+                                                                 final Function<ServerManifest.ModFileData, Path> partPathResolver, final PackUnpacker.EntryConsumer committer) {
+        final Map<String, ServerManifest.ModFileData> expectedFiles = new HashMap<>();
+        files.forEach(file -> expectedFiles.put(file.fileName(), file));
+        final Set<String> unpacked = ConcurrentHashMap.newKeySet();
+        final PackUnpacker unpacker = new PackUnpacker(expectedFiles, partPathResolver, (modFile, partPath, checksum) -> {
+            try {
+                committer.accept(modFile, partPath, checksum);
+                unpacked.add(modFile.fileName());
+                LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Unpacked " + unpacked.size() + " of " + files.size() + " server files");
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to unpack {}, it will be downloaded again", modFile.fileName(), e);
+            }
+        });
+
+        String uri = host + "/pack";
+        if (!excludedModIds.isEmpty()) {
+            uri += "?exclude=" + URLEncoder.encode(String.join(",", excludedModIds), StandardCharsets.UTF_8);
+        }
+        LOGGER.info("Requesting pack of {} files", files.size());
+        LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Requesting server pack");
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(uri))
+                .header("User-Agent", SimpleHttpClient.USER_AGENT)
+                .GET()
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .thenAcceptAsync(response -> {
+                    try (InputStream body = response.body()) {
+                        if (response.statusCode() != 200) {
+                            throw new IllegalStateException("Unexpected response " + response.statusCode() + " to pack request");
+                        }
+                        unpacker.unpack(body);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, blockingExecutor)
+                .handle((unused, t) -> {
+                    if (t != null) {
+                        LOGGER.warn("Failed to download server pack, downloading the remaining files individually", t);
+                    }
+                    return files.stream().filter(file -> !unpacked.contains(file.fileName())).toList();
+                });
+    }
+}
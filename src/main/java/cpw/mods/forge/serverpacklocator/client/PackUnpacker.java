@@ -0,0 +1,174 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Reads the tar archive served from {@code /pack} as it arrives, writing each expected file to its part file while
+ * hashing it, so that entries can be verified and committed without reading them back.
+ */
+class PackUnpacker {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_FILE_LEGACY = 0;
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private final Map<String, ServerManifest.ModFileData> expectedFiles;
+    private final Function<ServerManifest.ModFileData, Path> partPathResolver;
+    private final EntryConsumer consumer;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    PackUnpacker(final Map<String, ServerManifest.ModFileData> expectedFiles, final Function<ServerManifest.ModFileData, Path> partPathResolver, final EntryConsumer consumer) {
+        this.expectedFiles = expectedFiles;
+        this.partPathResolver = partPathResolver;
+        this.consumer = consumer;
+    }
+
+    void unpack(final InputStream input) throws IOException {
+        String paxPath = null;
+        while (true) {
+            final byte[] header = input.readNBytes(BLOCK_SIZE);
+            if (header.length < BLOCK_SIZE) {
+                throw new EOFException("Pack ended in the middle of a header");
+            }
+            if (isZeroBlock(header)) {
+                // Drain the rest of the end-of-archive marker so the connection can be reused
+                input.transferTo(OutputStream.nullOutputStream());
+                return;
+            }
+            final long size = parseOctal(header, 124, 12);
+            final byte type = header[156];
+            if (type == TYPE_PAX_HEADER) {
+                paxPath = parsePaxPath(readFully(input, size));
+                skip(input, padding(size));
+                continue;
+            }
+
+            final String name = paxPath != null ? paxPath : readName(header);
+            paxPath = null;
+            final ServerManifest.ModFileData modFile = (type == TYPE_FILE || type == TYPE_FILE_LEGACY) ? expectedFiles.get(name) : null;
+            if (modFile != null) {
+                final Path partPath = partPathResolver.apply(modFile);
+                final HashCode checksum = copyAndHash(input, size, partPath);
+                consumer.accept(modFile, partPath, checksum);
+            } else {
+                LOGGER.debug("Skipping {} in pack", name);
+                skip(input, size);
+            }
+            skip(input, padding(size));
+        }
+    }
+
+    private HashCode copyAndHash(final InputStream input, final long size, final Path partPath) throws IOException {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        try (OutputStream output = Files.newOutputStream(partPath)) {
+            long remaining = size;
+            while (remaining > 0) {
+                final int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Pack ended in the middle of " + partPath.getFileName());
+                }
+                output.write(buffer, 0, read);
+                hasher.putBytes(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return hasher.hash();
+    }
+
+    private static byte[] readFully(final InputStream input, final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Pack header is too large");
+        }
+        final byte[] bytes = input.readNBytes((int) size);
+        if (bytes.length < size) {
+            throw new EOFException("Pack ended in the middle of a header");
+        }
+        return bytes;
+    }
+
+    private static void skip(final InputStream input, final long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException("Pack ended unexpectedly");
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    @Nullable
+    private static String parsePaxPath(final byte[] data) {
+        final String records = new String(data, StandardCharsets.UTF_8);
+        for (final String record : records.split("\n")) {
+            final int space = record.indexOf(' ');
+            final int equals = record.indexOf('=');
+            if (space != -1 && equals > space && record.substring(space + 1, equals).equals("path")) {
+                return record.substring(equals + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String readName(final byte[] header) {
+        final String name = readString(header, 0, 100);
+        final String prefix = readString(header, 345, 155);
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private static String readString(final byte[] header, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long parseOctal(final byte[] header, final int offset, final int length) throws IOException {
+        final String value = readString(header, offset, length).trim();
+        try {
+            return value.isEmpty() ? 0 : Long.parseLong(value, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed size in pack header: " + value);
+        }
+    }
+
+    private static boolean isZeroBlock(final byte[] block) {
+        for (final byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long padding(final long size) {
+        return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    interface EntryConsumer {
+        void accept(ServerManifest.ModFileData modFile, Path partPath, HashCode checksum);
+    }
+}
@@ -0,0 +1,164 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds other clients on the local network which share the same server's pack, over multicast. Clients serving the
+ * pack announce themselves regularly, and a client which has just started asks for announcements straight away rather
+ * than waiting for the next round. Peers which stop announcing are forgotten.
+ */
+final class PeerDiscovery {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String PROTOCOL = "SPL-PEER/1";
+    private static final String ANNOUNCE = "ANNOUNCE";
+    private static final String QUERY = "QUERY";
+    private static final int MAX_PACKET_SIZE = 512;
+    private static final long ANNOUNCE_INTERVAL_MILLIS = 2000;
+    private static final long PEER_EXPIRY_MILLIS = 3 * ANNOUNCE_INTERVAL_MILLIS;
+
+    private final MulticastSocket socket;
+    private final InetSocketAddress group;
+    private final String packId;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Mirrors mirrors = new Mirrors(List.of());
+    private final Map<Mirrors.Mirror, Long> lastSeen = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService announcer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("ServerPackLocator Peer Announcer - %d")
+            .setDaemon(true)
+            .build());
+    // The port our own peer server is on, once we have something to share
+    private volatile int servingPort = -1;
+
+    private PeerDiscovery(final MulticastSocket socket, final InetSocketAddress group, final String packId) {
+        this.socket = socket;
+        this.group = group;
+        this.packId = packId;
+    }
+
+    /**
+     * @param server the server whose pack we share, as only peers of the same server are of any use
+     */
+    static PeerDiscovery start(final String group, final int port, final String server) throws IOException {
+        final InetSocketAddress groupAddress = new InetSocketAddress(InetAddress.getByName(group), port);
+        final MulticastSocket socket = new MulticastSocket(port);
+        try {
+            // Peers are only looked for on the local network, so announcements must never be routed beyond it
+            socket.setTimeToLive(1);
+            socket.joinGroup(groupAddress, null);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        final String packId = Hashing.sha256().hashString(server, StandardCharsets.UTF_8).toString();
+        final PeerDiscovery discovery = new PeerDiscovery(socket, groupAddress, packId);
+
+        final Thread receiver = new Thread(discovery::receive, "ServerPackLocator Peer Discovery");
+        receiver.setDaemon(true);
+        receiver.start();
+        discovery.send(QUERY);
+        discovery.announcer.scheduleAtFixedRate(discovery::announce, ANNOUNCE_INTERVAL_MILLIS, ANNOUNCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return discovery;
+    }
+
+    /**
+     * Starts announcing that our peer server on the given port is sharing the pack.
+     */
+    void serve(final int port) {
+        servingPort = port;
+        announce();
+    }
+
+    /**
+     * @return the peers which are still announcing themselves, best first
+     */
+    List<Mirrors.Mirror> ranked() {
+        final long now = System.currentTimeMillis();
+        lastSeen.values().removeIf(seen -> now - seen > PEER_EXPIRY_MILLIS);
+        return mirrors.ranked().stream().filter(lastSeen::containsKey).toList();
+    }
+
+    void close() {
+        announcer.shutdownNow();
+        socket.close();
+    }
+
+    private void receive() {
+        final byte[] buffer = new byte[MAX_PACKET_SIZE];
+        while (!socket.isClosed()) {
+            final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.debug("Failed to receive peer announcement", e);
+                continue;
+            }
+            handle(packet.getAddress(), new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private void handle(final InetAddress address, final String message) {
+        final String[] parts = message.split(" ");
+        if (parts.length < 3 || !parts[0].equals(PROTOCOL) || parts[parts.length - 1].equals(instanceId)) {
+            return;
+        }
+        if (parts[1].equals(QUERY)) {
+            announce();
+        } else if (parts[1].equals(ANNOUNCE) && parts.length == 5 && parts[2].equals(packId)) {
+            final Integer port = parsePort(parts[3]);
+            if (port != null) {
+                final String host = address.getHostAddress().contains(":") ? "[" + address.getHostAddress() + "]" : address.getHostAddress();
+                final Mirrors.Mirror peer = mirrors.add("http://" + host + ":" + port + "/blobs");
+                if (lastSeen.put(peer, System.currentTimeMillis()) == null) {
+                    LOGGER.info("Found peer {} sharing the server pack", peer);
+                }
+            }
+        }
+    }
+
+    private void announce() {
+        final int port = servingPort;
+        if (port != -1) {
+            send(ANNOUNCE + " " + packId + " " + port);
+        }
+    }
+
+    private void send(final String message) {
+        final byte[] data = (PROTOCOL + " " + message + " " + instanceId).getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(data, data.length, group));
+        } catch (IOException e) {
+            LOGGER.debug("Failed to send peer {}", message, e);
+        }
+    }
+
+    @Nullable
+    private static Integer parsePort(final String port) {
+        try {
+            final int value = Integer.parseInt(port);
+            return value > 0 && value <= 0xFFFF ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
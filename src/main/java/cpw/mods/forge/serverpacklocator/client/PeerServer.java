@@ -0,0 +1,157 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves our copy of the pack to other clients on the local network, by checksum from {@code /blobs/<sha256>} just
+ * like the pack server. Only files which have been verified against the manifest are published, and peers verify
+ * everything they download from us anyway.
+ */
+final class PeerServer {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAX_CONTENT_LENGTH = 8192;
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final String BLOBS_PATH = "/blobs/";
+
+    private final Semaphore uploads;
+    private volatile Map<HashCode, Path> files = Map.of();
+    @Nullable
+    private Channel channel;
+
+    private PeerServer(final int maxUploads) {
+        this.uploads = new Semaphore(maxUploads);
+    }
+
+    static PeerServer start(final int port, final int maxUploads) {
+        final PeerServer server = new PeerServer(maxUploads);
+        final NioEventLoopGroup group = new NioEventLoopGroup(1, new ThreadFactoryBuilder()
+                .setNameFormat("ServerPackLocator Peer Server - %d")
+                .setDaemon(true)
+                .build());
+        server.channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(final SocketChannel channel) {
+                        channel.pipeline().addLast("codec", new HttpServerCodec());
+                        channel.pipeline().addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                        channel.pipeline().addLast("request", server.new RequestHandler());
+                    }
+                })
+                .bind(port)
+                .syncUninterruptibly()
+                .channel();
+        LOGGER.info("Sharing server pack with peers on port {}", server.port());
+        return server;
+    }
+
+    int port() {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * Replaces the files we serve with the given verified files.
+     */
+    void publish(final Map<HashCode, Path> files) {
+        this.files = Map.copyOf(files);
+    }
+
+    private class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+            final Path file = findFile(msg);
+            if (file == null) {
+                buildReply(ctx, msg, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+            // Our own uplink is shared with the game, so only a few peers are served at once and the rest look elsewhere
+            if (!uploads.tryAcquire()) {
+                buildReply(ctx, msg, HttpResponseStatus.SERVICE_UNAVAILABLE);
+                return;
+            }
+
+            final RandomAccessFile raf;
+            final long length;
+            try {
+                raf = new RandomAccessFile(file.toFile(), "r");
+                length = raf.length();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to open {} for a peer", file, e);
+                uploads.release();
+                buildReply(ctx, msg, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+
+            final HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+            resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
+            HttpUtil.setContentLength(resp, length);
+            ctx.write(resp);
+            ctx.write(new DefaultFileRegion(raf.getChannel(), 0, length));
+            final ChannelFuture transfer = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            transfer.addListener(future -> uploads.release());
+            if (!HttpUtil.isKeepAlive(msg)) {
+                transfer.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Nullable
+        private Path findFile(final FullHttpRequest msg) {
+            if (!HttpMethod.GET.equals(msg.method()) || !msg.uri().startsWith(BLOBS_PATH)) {
+                return null;
+            }
+            try {
+                return files.get(HashCode.fromString(msg.uri().substring(BLOBS_PATH.length()).toLowerCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        private void buildReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final HttpResponseStatus status) {
+            final FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer(status.reasonPhrase(), StandardCharsets.UTF_8));
+            HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+            resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+            if (status == HttpResponseStatus.SERVICE_UNAVAILABLE) {
+                resp.headers().set(HttpHeaderNames.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            }
+            HttpUtil.setContentLength(resp, resp.content().readableBytes());
+            final ChannelFuture write = ctx.writeAndFlush(resp);
+            if (!HttpUtil.isKeepAlive(msg)) {
+                write.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            LOGGER.debug("Error serving a peer", cause);
+            ctx.close();
+        }
+    }
+}
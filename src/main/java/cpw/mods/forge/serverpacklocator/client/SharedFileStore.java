@@ -0,0 +1,193 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * User-level store of downloaded files keyed by their checksum, shared between game instances and servers.
+ * Files are materialized into an instance by hard link where possible, and the least recently used files are
+ * evicted once the store grows beyond its size limit.
+ */
+class SharedFileStore {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Gson GSON = new GsonBuilder().create();
+    private static final String INDEX_FILE_NAME = "index.json";
+    private static final String LOCK_FILE_NAME = "index.lock";
+
+    private final Path root;
+    private final long maxSizeBytes;
+    private final Map<HashCode, Entry> entries = new ConcurrentHashMap<>();
+
+    private SharedFileStore(final Path root, final long maxSizeBytes) {
+        this.root = root;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    static SharedFileStore open(final Path root, final long maxSizeBytes) {
+        final SharedFileStore store = new SharedFileStore(DirHandler.createDirIfNeeded(root), maxSizeBytes);
+        store.readIndex().forEach(entry -> store.entries.put(entry.checksum(), entry));
+        return store;
+    }
+
+    /**
+     * Links or copies the file with the given checksum into place, if the store has it.
+     *
+     * @return whether the target now contains the requested file
+     */
+    boolean materialize(final HashCode checksum, final Path target) {
+        final Path source = pathFor(checksum);
+        if (!Files.isRegularFile(source)) {
+            return false;
+        }
+        if (!checksum.equals(FileChecksumValidator.computeChecksumFor(source))) {
+            LOGGER.warn("Removing corrupted file {} from shared cache", source);
+            remove(checksum);
+            return false;
+        }
+        try {
+            final Path tempFile = target.resolveSibling(target.getFileName() + ".link");
+            Files.deleteIfExists(tempFile);
+            DirHandler.linkOrCopy(source, tempFile);
+            DirHandler.replaceFile(tempFile, target);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to copy {} from shared cache", target.getFileName(), e);
+            return false;
+        }
+        touch(checksum, source);
+        return true;
+    }
+
+    /**
+     * Adds a verified file to the store, unless it is already present.
+     */
+    void store(final HashCode checksum, final Path file) {
+        final Path target = pathFor(checksum);
+        try {
+            if (!Files.exists(target)) {
+                DirHandler.createDirIfNeeded(target.getParent());
+                final Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+                Files.deleteIfExists(tempFile);
+                DirHandler.linkOrCopy(file, tempFile);
+                DirHandler.replaceFile(tempFile, target);
+            }
+            touch(checksum, target);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to add {} to shared cache", file.getFileName(), e);
+        }
+    }
+
+    /**
+     * Merges our usage into the on-disk index and evicts the least recently used files beyond the size limit.
+     * The index is shared with other game instances, so this happens under a file lock.
+     */
+    void save() {
+        try (FileChannel lockChannel = FileChannel.open(root.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = lockChannel.lock();
+            try {
+                final Map<HashCode, Entry> merged = new HashMap<>();
+                for (final Entry entry : readIndex()) {
+                    merged.put(entry.checksum(), entry);
+                }
+                entries.values().forEach(entry -> merged.merge(entry.checksum(), entry, (a, b) -> a.lastUsed() >= b.lastUsed() ? a : b));
+                merged.values().removeIf(entry -> !Files.isRegularFile(pathFor(entry.checksum())));
+
+                final List<Entry> byLastUsed = new ArrayList<>(merged.values());
+                byLastUsed.sort(Comparator.comparingLong(Entry::lastUsed).reversed());
+                long totalSize = 0;
+                final List<Entry> retained = new ArrayList<>();
+                for (final Entry entry : byLastUsed) {
+                    totalSize += entry.size();
+                    if (totalSize > maxSizeBytes) {
+                        LOGGER.debug("Evicting {} from shared cache", entry.checksum());
+                        Files.deleteIfExists(pathFor(entry.checksum()));
+                    } else {
+                        retained.add(entry);
+                    }
+                }
+                writeIndex(retained);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to update shared cache index in {}", root, e);
+        }
+    }
+
+    private void touch(final HashCode checksum, final Path file) {
+        try {
+            entries.put(checksum, new Entry(checksum, Files.size(file), System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read size of {}", file, e);
+        }
+    }
+
+    private void remove(final HashCode checksum) {
+        entries.remove(checksum);
+        try {
+            Files.deleteIfExists(pathFor(checksum));
+        } catch (IOException e) {
+            LOGGER.debug("Failed to remove {} from shared cache", checksum, e);
+        }
+    }
+
+    private Path pathFor(final HashCode checksum) {
+        final String hex = checksum.toString();
+        return root.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    private List<Entry> readIndex() {
+        final Path indexFile = root.resolve(INDEX_FILE_NAME);
+        if (!Files.exists(indexFile)) {
+            return List.of();
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            return Entry.CODEC.listOf().parse(JsonOps.INSTANCE, JsonParser.parseReader(reader)).result().orElseGet(() -> {
+                LOGGER.warn("Ignoring malformed shared cache index {}", indexFile);
+                return List.of();
+            });
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read shared cache index {}", indexFile, e);
+            return List.of();
+        }
+    }
+
+    private void writeIndex(final List<Entry> index) throws IOException {
+        final Path indexFile = root.resolve(INDEX_FILE_NAME);
+        final Path tempFile = root.resolve(INDEX_FILE_NAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            GSON.toJson(Entry.CODEC.listOf().encodeStart(JsonOps.INSTANCE, index).result().orElseThrow(), writer);
+        }
+        DirHandler.replaceFile(tempFile, indexFile);
+    }
+
+    private record Entry(HashCode checksum, long size, long lastUsed) {
+        private static final Codec<HashCode> HASH_CODE_CODEC = Codec.STRING.xmap(HashCode::fromString, HashCode::toString);
+
+        private static final Codec<Entry> CODEC = RecordCodecBuilder.create(i -> i.group(
+                HASH_CODE_CODEC.fieldOf("checksum").forGetter(Entry::checksum),
+                Codec.LONG.fieldOf("size").forGetter(Entry::size),
+                Codec.LONG.fieldOf("lastUsed").forGetter(Entry::lastUsed)
+        ).apply(i, Entry::new));
+    }
+}
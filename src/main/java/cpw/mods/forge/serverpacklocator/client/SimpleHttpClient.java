@@ -1,9 +1,9 @@
 package cpw.mods.forge.serverpacklocator.client;
 
-import com.google.common.collect.Iterators;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mojang.serialization.DataResult;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
 import cpw.mods.forge.serverpacklocator.DirHandler;
 import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
 import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
@@ -12,15 +12,25 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 public class SimpleHttpClient {
     private static final Logger LOGGER = LogManager.getLogger();
@@ -29,85 +39,579 @@ public class SimpleHttpClient {
             .setNameFormat("ServerPackLocator HTTP Client - %d")
             .setDaemon(true)
             .build());
+    // Planning, unpacking, applying deltas and verifying downloads all block on the disk, which must stay off the HTTP
+    // client's own threads
+    private static final Executor BLOCKING_EXECUTOR = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder()
+            .setNameFormat("ServerPackLocator File Work - %d")
+            .setDaemon(true)
+            .build());
 
-    private static final String USER_AGENT = "ServerPackLocator (https://github.com/LoveTropics/serverpacklocator)";
+    static final String USER_AGENT = "ServerPackLocator (https://github.com/LoveTropics/serverpacklocator)";
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+    private static final String MANIFEST_FILE_NAME = "servermanifest.json";
+    private static final String MANIFEST_ETAG_FILE_NAME = "servermanifest.etag";
+    private static final String PART_FILE_SUFFIX = ".part";
+    private static final String LINK_FILE_SUFFIX = ".link";
+    // Hidden, so that the mod locator never sees a half-updated pack
+    private static final String STAGING_DIR_NAME = ".staging";
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+    private static final int MAX_BUSY_RETRIES = 20;
+    private static final long MAX_BUSY_BACKOFF_MILLIS = 30_000;
+    private static final long DEFAULT_SHARED_CACHE_SIZE_MB = 4096;
+    private static final int MIN_PACK_FILES = 4;
+    private static final String RACING_PART_FILE_SUFFIX = ".race" + PART_FILE_SUFFIX;
+    private static final String DEFAULT_PEER_GROUP = "239.255.42.99";
+    private static final int DEFAULT_PEER_DISCOVERY_PORT = 25595;
+    private static final int DEFAULT_PEER_MAX_UPLOADS = 4;
 
+    // HTTP/2 lets concurrent downloads share a single multiplexed connection where the server supports it
     private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
             .executor(EXECUTOR)
             .build();
 
     private final Path outputDir;
+    private final Path stagingDir;
+    private final ChecksumCache checksumCache;
     private final CompletableFuture<ServerManifest> downloadJob;
     private final Set<String> excludedModIds;
+    private final int maxConcurrentDownloads;
+    @Nullable
+    private final SharedFileStore sharedStore;
+    @Nullable
+    private final Peers peers;
+    private final PackDownloader packDownloader = new PackDownloader(client, BLOCKING_EXECUTOR);
+    private final DeltaDownloader deltaDownloader;
 
     public SimpleHttpClient(final ClientSidedPackHandler packHandler, final Set<String> excludedModIds, final Path outputDir) {
         this.outputDir = outputDir;
+        this.stagingDir = outputDir.resolve(STAGING_DIR_NAME);
+        this.checksumCache = ChecksumCache.load(outputDir);
+        this.deltaDownloader = new DeltaDownloader(client, BLOCKING_EXECUTOR, outputDir);
         this.excludedModIds = excludedModIds;
+        this.maxConcurrentDownloads = Math.max(1, packHandler.getConfig().getOptionalInt("client.maxConcurrentDownloads").orElse(DEFAULT_MAX_CONCURRENT_DOWNLOADS));
+        this.sharedStore = packHandler.getConfig().<String>getOptional("client.sharedCache.directory")
+                .map(directory -> {
+                    final long maxSizeMb = packHandler.getConfig().getOptionalLong("client.sharedCache.maxSizeMb").orElse(DEFAULT_SHARED_CACHE_SIZE_MB);
+                    return SharedFileStore.open(Path.of(directory), maxSizeMb * 1024 * 1024);
+                })
+                .orElse(null);
 
         final Optional<String> remoteServer = packHandler.getConfig().<String>getOptional("client.remoteServer")
                 .map(server -> server.endsWith("/") ? server.substring(0, server.length() - 1) : server);
+        this.peers = remoteServer.filter(server -> packHandler.getConfig().<Boolean>getOptional("client.peers.enabled").orElse(false))
+                .map(server -> startPeers(packHandler, server))
+                .orElse(null);
         downloadJob = remoteServer.map(this::connectAndDownload)
-                .orElse(CompletableFuture.completedFuture(null));
+                .orElse(CompletableFuture.completedFuture(null))
+                .whenComplete((manifest, throwable) -> {
+                    checksumCache.save();
+                    if (sharedStore != null) {
+                        sharedStore.save();
+                    }
+                });
+    }
+
+    @Nullable
+    private static Peers startPeers(final ClientSidedPackHandler packHandler, final String remoteServer) {
+        final String group = packHandler.getConfig().<String>getOptional("client.peers.group").orElse(DEFAULT_PEER_GROUP);
+        final int discoveryPort = packHandler.getConfig().getOptionalInt("client.peers.discoveryPort").orElse(DEFAULT_PEER_DISCOVERY_PORT);
+        final PeerDiscovery discovery;
+        try {
+            discovery = PeerDiscovery.start(group, discoveryPort, remoteServer);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to start looking for peers on the local network, downloading from the server only", e);
+            return null;
+        }
+        try {
+            final PeerServer server = PeerServer.start(
+                    packHandler.getConfig().getOptionalInt("client.peers.port").orElse(0),
+                    Math.max(1, packHandler.getConfig().getOptionalInt("client.peers.maxUploads").orElse(DEFAULT_PEER_MAX_UPLOADS))
+            );
+            return new Peers(discovery, server);
+        } catch (Exception e) {
+            discovery.close();
+            LOGGER.warn("Failed to start sharing with peers on the local network, downloading from the server only", e);
+            return null;
+        }
     }
 
     private CompletableFuture<ServerManifest> connectAndDownload(final String host) {
-        return downloadManifest(host).thenCompose(manifest -> {
-            List<ServerManifest.ModFileData> filesToDownload = manifest.files().stream()
-                    .filter(file -> !excludedModIds.contains(file.rootModId()))
-                    .toList();
-            LOGGER.debug("Downloading {} of {} files from manifest", filesToDownload.size(), manifest.files().size());
+        final ServerManifest previousManifest = loadCachedManifest();
+        // Hashing what we already have doesn't depend on the manifest, so it runs while the manifest is in flight
+        final CompletableFuture<Map<Path, HashCode>> existingChecksums = CompletableFuture.supplyAsync(() -> hashExistingFiles(false), BLOCKING_EXECUTOR);
+        return downloadManifest(host).thenCombineAsync(existingChecksums, (fetched, checksums) -> {
+            // Older servers list legacy checksums, so what we have has to be hashed again to compare against them
+            final boolean legacyChecksums = fetched.manifest().usesLegacyChecksums();
+            return planDownloads(fetched, previousManifest, legacyChecksums ? hashExistingFiles(true) : checksums);
+        }, BLOCKING_EXECUTOR).thenCompose(plan -> {
+            final ServerManifest manifest = plan.fetched().manifest();
+            LOGGER.debug("Downloading {} of {} files from manifest", plan.files().size(), manifest.files().size());
 
-            return sequential(Iterators.transform(filesToDownload.iterator(), file -> downloadFile(host, file))).thenApply(unused -> {
+            final Mirrors mirrors = new Mirrors(manifest.mirrors());
+            final DownloadSession session = new DownloadSession(host, manifest, plan.deltaBases(), mirrors);
+            final CompletableFuture<?> download;
+            // A client that has never connected before can't use deltas, so fetching everything in one stream is cheaper.
+            // The pack can only come from the server itself though, so with mirrors or peers to share the load it is skipped
+            if (previousManifest == null && mirrors.isEmpty() && (peers == null || peers.discovery().ranked().isEmpty()) && manifest.hasFeature(ServerManifest.FEATURE_PACK) && plan.files().size() >= MIN_PACK_FILES) {
+                download = packDownloader.download(host, excludedModIds, plan.files(), this::partPath,
+                        (modFile, partPath, checksum) -> commitVerifiedPartFile(modFile, partPath, stagedPath(modFile), checksum)
+                ).thenCompose(remaining -> downloadAll(session, remaining));
+            } else {
+                download = downloadAll(session, plan.files());
+            }
+            return download.thenApplyAsync(unused -> {
                 LOGGER.debug("Finished downloading files");
+                commit(plan);
+                if (peers != null) {
+                    share(peers, plan);
+                }
                 return manifest;
-            });
+            }, BLOCKING_EXECUTOR);
         });
     }
 
-    private static CompletableFuture<?> sequential(final Iterator<CompletableFuture<?>> iterator) {
-        if (iterator.hasNext()) {
-            return iterator.next().thenCompose(unused -> sequential(iterator));
+    // Only files the previous manifest listed are pruned, anything else in the output directory wasn't put there by us
+    private void commit(final DownloadPlan plan) {
+        final boolean legacyChecksums = plan.fetched().manifest().usesLegacyChecksums();
+        for (final ServerManifest.ModFileData file : plan.stagedFiles()) {
+            final Path targetPath = resolvePath(file);
+            try {
+                DirHandler.replaceFile(stagedPath(file), targetPath);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to move " + file.fileName() + " into place", e);
+            }
+            if (!legacyChecksums) {
+                checksumCache.put(targetPath, file.checksum());
+            }
+        }
+        LOGGER.debug("Committed {} updated files", plan.stagedFiles().size());
+
+        if (plan.previousManifest() != null) {
+            final Set<Path> requiredPaths = new HashSet<>();
+            plan.requiredFiles().forEach(file -> requiredPaths.add(resolvePath(file)));
+            for (final ServerManifest.ModFileData previous : plan.previousManifest().files()) {
+                final Path path = DirHandler.resolveDirectChild(outputDir, previous.fileName());
+                if (path != null && !requiredPaths.contains(path) && Files.isRegularFile(path)) {
+                    prune(path, legacyChecksums ? null : plan.existingChecksums().get(path));
+                }
+            }
+        }
+        listFiles(stagingDir).forEach(SimpleHttpClient::deleteQuietly);
+
+        final FetchedManifest fetched = plan.fetched();
+        if (fetched.json() != null && fetched.etag() != null) {
+            saveCachedManifest(fetched.json(), fetched.etag());
         }
-        return CompletableFuture.completedFuture(null);
     }
 
-    private CompletableFuture<ServerManifest> downloadManifest(final String host) {
+    private void share(final Peers peers, final DownloadPlan plan) {
+        final Map<HashCode, Path> files = new HashMap<>();
+        plan.requiredFiles().forEach(file -> files.put(file.checksum(), resolvePath(file)));
+        peers.server().publish(files);
+        peers.discovery().serve(peers.server().port());
+    }
+
+    private void prune(final Path path, @Nullable final HashCode checksum) {
+        if (sharedStore != null && checksum != null) {
+            sharedStore.store(checksum, path);
+        }
+        LOGGER.info("Removing {}, which is no longer part of the server pack", path.getFileName());
+        deleteQuietly(path);
+    }
+
+    private Map<Path, HashCode> hashExistingFiles(final boolean legacyChecksums) {
+        DirHandler.createDirIfNeeded(stagingDir);
+        final List<Path> existingFiles = new ArrayList<>();
+        listFiles(outputDir).stream().filter(path -> !isManifestCache(path) && !isTemporaryFile(path)).forEach(existingFiles::add);
+        listFiles(stagingDir).stream().filter(path -> !isTemporaryFile(path)).forEach(existingFiles::add);
+        LOGGER.debug("Checking {} existing files", existingFiles.size());
+        if (legacyChecksums) {
+            return FileChecksumValidator.computeChecksumsFor(existingFiles, FileChecksumValidator::computeLegacyChecksumFor);
+        }
+        return checksumCache.computeChecksumsFor(existingFiles);
+    }
+
+    private static List<Path> listFiles(final Path dir) {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> !path.getFileName().toString().startsWith(".") && Files.isRegularFile(path)).toList();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to list files in {}", dir, e);
+            return List.of();
+        }
+    }
+
+    private static boolean isManifestCache(final Path path) {
+        final String name = path.getFileName().toString();
+        return name.equals(MANIFEST_FILE_NAME) || name.equals(MANIFEST_ETAG_FILE_NAME);
+    }
+
+    private static boolean isTemporaryFile(final Path path) {
+        final String name = path.getFileName().toString();
+        return name.endsWith(PART_FILE_SUFFIX) || name.endsWith(DeltaDownloader.DELTA_FILE_SUFFIX) || name.endsWith(LINK_FILE_SUFFIX);
+    }
+
+    private DownloadPlan planDownloads(final FetchedManifest fetched, @Nullable final ServerManifest previousManifest, final Map<Path, HashCode> existingChecksums) {
+        final ServerManifest manifest = fetched.manifest();
+        // The shared cache is keyed by SHA-256, so it can't be used with the legacy checksums of older servers
+        final SharedFileStore store = manifest.usesLegacyChecksums() ? null : sharedStore;
+        final List<ServerManifest.ModFileData> requiredFiles = manifest.files().stream()
+                .filter(file -> !excludedModIds.contains(file.rootModId()))
+                .toList();
+        final List<ServerManifest.ModFileData> stagedFiles = new ArrayList<>();
+        final List<ServerManifest.ModFileData> missingFiles = new ArrayList<>();
+        for (final ServerManifest.ModFileData file : requiredFiles) {
+            final Path path = resolvePath(file);
+            if (file.checksum().equals(existingChecksums.get(path))) {
+                LOGGER.debug("Found existing file {} - skipping", file.fileName());
+                if (store != null) {
+                    store.store(file.checksum(), path);
+                }
+                continue;
+            }
+            stagedFiles.add(file);
+            if (file.checksum().equals(existingChecksums.get(stagedPath(file)))) {
+                LOGGER.debug("Found {} staged by a previous update", file.fileName());
+            } else {
+                missingFiles.add(file);
+            }
+        }
+
+        final List<ServerManifest.ModFileData> filesToDownload;
+        if (store != null && !missingFiles.isEmpty()) {
+            // Restoring from the shared cache verifies each file, so it is spread over the hashing pool too
+            final Map<ServerManifest.ModFileData, HashCode> materialized = FileChecksumValidator.computeChecksumsFor(missingFiles,
+                    file -> store.materialize(file.checksum(), stagedPath(file)) ? file.checksum() : null);
+            materialized.keySet().forEach(file -> LOGGER.info("Found {} in shared cache", file.fileName()));
+            filesToDownload = missingFiles.stream().filter(file -> !materialized.containsKey(file)).toList();
+        } else {
+            filesToDownload = missingFiles;
+        }
+
+        final Map<String, ServerManifest.ModFileData> deltaBases = new HashMap<>();
+        if (previousManifest != null && manifest.hasFeature(ServerManifest.FEATURE_DELTAS)) {
+            for (final ServerManifest.ModFileData file : filesToDownload) {
+                final ServerManifest.ModFileData base = deltaDownloader.findBase(previousManifest, file, existingChecksums);
+                if (base != null) {
+                    deltaBases.put(file.fileName(), base);
+                }
+            }
+        }
+        return new DownloadPlan(fetched, previousManifest, requiredFiles, stagedFiles, filesToDownload, deltaBases, existingChecksums);
+    }
+
+    private CompletableFuture<?> downloadAll(final DownloadSession session, final List<ServerManifest.ModFileData> files) {
+        final Iterator<ServerManifest.ModFileData> queue = files.iterator();
+        final AtomicInteger completed = new AtomicInteger();
+        final Function<ServerManifest.ModFileData, CompletableFuture<?>> task = file -> downloadFile(session, file).thenRun(() -> {
+            final int count = completed.incrementAndGet();
+            LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Downloaded " + count + " of " + files.size() + " server files");
+        });
+
+        final int workers = Math.min(maxConcurrentDownloads, files.size());
+        LOGGER.debug("Downloading with {} concurrent requests", workers);
+        final CompletableFuture<?>[] window = new CompletableFuture<?>[workers];
+        for (int i = 0; i < workers; i++) {
+            window[i] = downloadNext(queue, task);
+        }
+        return CompletableFuture.allOf(window);
+    }
+
+    // Each slot in the window pulls the next file from the shared queue as soon as its previous download finishes
+    private static CompletableFuture<?> downloadNext(final Iterator<ServerManifest.ModFileData> queue, final Function<ServerManifest.ModFileData, CompletableFuture<?>> task) {
+        final ServerManifest.ModFileData next;
+        synchronized (queue) {
+            if (!queue.hasNext()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            next = queue.next();
+        }
+        return task.apply(next).thenCompose(unused -> downloadNext(queue, task));
+    }
+
+    private CompletableFuture<FetchedManifest> downloadManifest(final String host) {
         LOGGER.info("Requesting server manifest from: {}", host);
         LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Requesting server manifest from: " + host);
 
-        HttpRequest request = HttpRequest.newBuilder(URI.create(host + "/servermanifest.json"))
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(host + "/servermanifest.json"))
                 .header("User-Agent", USER_AGENT)
-                .GET()
-                .build();
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
-                .thenApply(SimpleHttpClient::parseManifest);
+                .header("Accept-Encoding", "gzip")
+                .GET();
+        final String cachedEtag = readCachedManifestEtag();
+        if (cachedEtag != null) {
+            request.header("If-None-Match", cachedEtag);
+        }
+        return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(this::handleManifestResponse);
+    }
+
+    private FetchedManifest handleManifestResponse(final HttpResponse<byte[]> response) {
+        if (response.statusCode() == 304) {
+            LOGGER.debug("Server manifest has not changed since the last launch");
+            final ServerManifest manifest = loadCachedManifest();
+            if (manifest == null) {
+                throw new IllegalStateException("Server reported an unchanged manifest, but the cached manifest could not be read");
+            }
+            return new FetchedManifest(manifest, null, null);
+        } else if (response.statusCode() != 200) {
+            throw new IllegalStateException("Unexpected response to manifest request: " + response.statusCode());
+        }
+
+        final String json = new String(decodeBody(response), StandardCharsets.UTF_8);
+        final DataResult<ServerManifest> result = ServerManifest.parse(json);
+        final ServerManifest manifest = result.result().orElseThrow(() -> new IllegalStateException("Manifest was malformed: " + result.error().orElseThrow()));
+        return new FetchedManifest(manifest, json, response.headers().firstValue("ETag").orElse(null));
     }
 
-    private static ServerManifest parseManifest(HttpResponse<String> response) {
-        DataResult<ServerManifest> result = ServerManifest.parse(response.body());
-        return result.result().orElseThrow(() -> new IllegalStateException("Manifest was malformed: " + result.error().orElseThrow()));
+    private static byte[] decodeBody(final HttpResponse<byte[]> response) {
+        final String encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+        if (encoding.equalsIgnoreCase("identity")) {
+            return response.body();
+        } else if (encoding.equalsIgnoreCase("gzip")) {
+            try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+                return input.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        throw new IllegalStateException("Unsupported content encoding: " + encoding);
     }
 
-    private CompletableFuture<?> downloadFile(final String host, final ServerManifest.ModFileData modFile) {
-        final Path targetPath = resolvePath(modFile);
+    @Nullable
+    private ServerManifest loadCachedManifest() {
+        if (!Files.exists(manifestCachePath())) {
+            return null;
+        }
+        try {
+            final DataResult<ServerManifest> result = ServerManifest.load(manifestCachePath());
+            result.error().ifPresent(error -> LOGGER.warn("Cached manifest was malformed: {}", error.message()));
+            return result.result().orElse(null);
+        } catch (UncheckedIOException e) {
+            LOGGER.warn("Failed to read cached manifest", e);
+            return null;
+        }
+    }
 
-        final HashCode existingChecksum = FileChecksumValidator.computeChecksumFor(targetPath);
-        if (Objects.equals(modFile.checksum(), existingChecksum)) {
-            LOGGER.debug("Found existing file {} - skipping", modFile.fileName());
-            return CompletableFuture.completedFuture(null);
+    @Nullable
+    private String readCachedManifestEtag() {
+        final Path etagPath = manifestEtagPath();
+        if (!Files.exists(etagPath) || !Files.exists(manifestCachePath())) {
+            return null;
+        }
+        try {
+            return Files.readString(etagPath, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read cached manifest ETag", e);
+            return null;
+        }
+    }
+
+    private void saveCachedManifest(final String json, final String etag) {
+        // The ETag is removed first, so that an interrupted save can never pair it with a different manifest
+        try {
+            Files.deleteIfExists(manifestEtagPath());
+            Files.writeString(manifestCachePath(), json, StandardCharsets.UTF_8);
+            Files.writeString(manifestEtagPath(), etag, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache server manifest", e);
         }
+    }
+
+    private Path manifestCachePath() {
+        return outputDir.resolve(MANIFEST_FILE_NAME);
+    }
+
+    private Path manifestEtagPath() {
+        return outputDir.resolve(MANIFEST_ETAG_FILE_NAME);
+    }
 
+    private CompletableFuture<?> downloadFile(final DownloadSession session, final ServerManifest.ModFileData modFile) {
         final String fileName = modFile.fileName();
         LOGGER.info("Requesting file: {}", fileName);
         LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Requesting file: " + fileName);
 
-        final URI uri = URI.create(host + "/files/" + URLEncoder.encode(fileName, StandardCharsets.UTF_8).replaceAll("\\+", "%20"));
-        final HttpRequest request = HttpRequest.newBuilder(uri)
+        final ServerManifest.ModFileData deltaBase = session.deltaBases().get(modFile.fileName());
+        final CompletableFuture<Void> download;
+        if (deltaBase != null) {
+            final Path partPath = partPath(modFile);
+            download = deltaDownloader.download(session.host(), deltaBase, modFile, partPath)
+                    .thenRunAsync(() -> commitPartFile(modFile, partPath, stagedPath(modFile)), BLOCKING_EXECUTOR)
+                    .exceptionallyCompose(t -> {
+                        LOGGER.info("Could not update {} from {} with a delta, downloading the whole file", fileName, deltaBase.fileName(), t);
+                        return downloadWholeFile(session, modFile);
+                    });
+        } else {
+            download = downloadWholeFile(session, modFile);
+        }
+        return download.thenRun(() -> LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Finished downloading file: " + fileName));
+    }
+
+    private CompletableFuture<Void> downloadWholeFile(final DownloadSession session, final ServerManifest.ModFileData modFile) {
+        final URI uri = fileUri(session.host(), session.manifest(), modFile);
+        final boolean legacyChecksums = session.manifest().usesLegacyChecksums();
+        // Peers are nearby, so they are preferred over the mirrors and the server
+        final List<Mirrors.Mirror> mirrors = new ArrayList<>();
+        if (peers != null) {
+            mirrors.addAll(peers.discovery().ranked());
+        }
+        mirrors.addAll(session.mirrors().ranked());
+        if (mirrors.isEmpty()) {
+            return downloadFile(uri, modFile, legacyChecksums, 1, 0);
+        }
+        final Path targetPath = stagedPath(modFile);
+        final Path racingPartPath = targetPath.resolveSibling(targetPath.getFileName() + RACING_PART_FILE_SUFFIX);
+        final Mirrors.Race race = new Mirrors.Race(modFile, mirrors, partPath(modFile), racingPartPath, targetPath) {
+            @Override
+            protected CompletableFuture<HttpResponse<HashCode>> send(final URI uri, final Path partPath, final LongConsumer onResponse) {
+                return client.sendAsync(fileRequest(uri, modFile, partPath), responseInfo -> {
+                    onResponse.accept(responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1));
+                    return partFileSubscriber(responseInfo, partPath);
+                });
+            }
+
+            @Override
+            protected CompletableFuture<Void> complete(final HttpResponse<HashCode> response, final Path partPath) {
+                return CompletableFuture.runAsync(() -> completeDownload(response, modFile, legacyChecksums, partPath, targetPath), BLOCKING_EXECUTOR);
+            }
+        };
+        return race.start().exceptionallyCompose(t -> {
+            LOGGER.warn("Could not download {} from any mirror, downloading it from the server", modFile.fileName(), t);
+            return downloadFile(uri, modFile, legacyChecksums, 1, 0);
+        });
+    }
+
+    private CompletableFuture<Void> downloadFile(final URI uri, final ServerManifest.ModFileData modFile, final boolean legacyChecksums, final int attempt, final int busyRetries) {
+        final Path targetPath = stagedPath(modFile);
+        final Path partPath = targetPath.resolveSibling(targetPath.getFileName() + PART_FILE_SUFFIX);
+
+        return client.sendAsync(fileRequest(uri, modFile, partPath), responseInfo -> partFileSubscriber(responseInfo, partPath))
+                .thenAcceptAsync(response -> completeDownload(response, modFile, legacyChecksums, partPath, targetPath), BLOCKING_EXECUTOR)
+                .exceptionallyCompose(t -> {
+                    // The server turning us away doesn't count as a failed attempt, we just come back later
+                    if (t.getCause() instanceof ServerBusyException busy && busyRetries < MAX_BUSY_RETRIES) {
+                        final long delayMillis = busyBackoffMillis(busy.retryAfterMillis(), busyRetries);
+                        LOGGER.debug("Server is busy, retrying {} in {}ms", modFile.fileName(), delayMillis);
+                        final Executor delayedExecutor = CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS, EXECUTOR);
+                        return CompletableFuture.runAsync(() -> {}, delayedExecutor)
+                                .thenCompose(v -> downloadFile(uri, modFile, legacyChecksums, attempt, busyRetries + 1));
+                    }
+                    if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                        return CompletableFuture.failedFuture(t);
+                    }
+                    LOGGER.warn("Failed to download {} (attempt {} of {}), retrying", modFile.fileName(), attempt, MAX_DOWNLOAD_ATTEMPTS, t);
+                    return downloadFile(uri, modFile, legacyChecksums, attempt + 1, busyRetries);
+                });
+    }
+
+    private static HttpRequest fileRequest(final URI uri, final ServerManifest.ModFileData modFile, final Path partPath) {
+        final long existingLength = partFileLength(partPath);
+        final HttpRequest.Builder request = HttpRequest.newBuilder(uri)
                 .header("User-Agent", USER_AGENT)
-                .GET()
-                .build();
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofFile(targetPath))
-                .thenAccept(response -> LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Finished downloading file: " + fileName));
+                .GET();
+        if (existingLength > 0) {
+            LOGGER.debug("Resuming download of {} from byte {}", modFile.fileName(), existingLength);
+            request.header("Range", "bytes=" + existingLength + "-");
+            request.header("If-Range", "\"" + modFile.checksum() + "\"");
+        }
+        return request.build();
+    }
+
+    // Jittered, so that clients turned away together don't all come back at the same moment
+    private static long busyBackoffMillis(final long retryAfterMillis, final int busyRetries) {
+        final long backoff = Math.min(MAX_BUSY_BACKOFF_MILLIS, 500L << Math.min(busyRetries, 16));
+        return Math.max(retryAfterMillis, backoff) + ThreadLocalRandom.current().nextLong(1000);
+    }
+
+    private static URI fileUri(final String host, final ServerManifest manifest, final ServerManifest.ModFileData modFile) {
+        // Content-addressed URLs never change meaning, so they can be served by a cache in front of the server
+        if (manifest.hasFeature(ServerManifest.FEATURE_BLOBS)) {
+            return URI.create(host + "/blobs/" + modFile.checksum());
+        }
+        return URI.create(host + "/files/" + URLEncoder.encode(modFile.fileName(), StandardCharsets.UTF_8).replaceAll("\\+", "%20"));
+    }
+
+    private static HttpResponse.BodySubscriber<HashCode> partFileSubscriber(final HttpResponse.ResponseInfo responseInfo, final Path partPath) {
+        return switch (responseInfo.statusCode()) {
+            case 206 -> new HashingFileSubscriber(partPath, true);
+            case 200 -> new HashingFileSubscriber(partPath, false);
+            default -> HttpResponse.BodySubscribers.replacing(null);
+        };
+    }
+
+    private void completeDownload(final HttpResponse<HashCode> response, final ServerManifest.ModFileData modFile, final boolean legacyChecksums, final Path partPath, final Path targetPath) {
+        if (response.statusCode() == 503) {
+            throw new ServerBusyException(parseRetryAfterMillis(response));
+        }
+        if (response.statusCode() != 200 && response.statusCode() != 206) {
+            deleteQuietly(partPath);
+            throw new IllegalStateException("Unexpected response " + response.statusCode() + " while downloading " + modFile.fileName());
+        }
+        if (legacyChecksums) {
+            // The legacy digest can only be computed from the finished file, and is never cached or shared
+            moveVerifiedPartFile(modFile, partPath, targetPath, FileChecksumValidator.computeLegacyChecksumFor(partPath));
+        } else {
+            commitVerifiedPartFile(modFile, partPath, targetPath, response.body());
+        }
+    }
+
+    private void commitPartFile(final ServerManifest.ModFileData modFile, final Path partPath, final Path targetPath) {
+        commitVerifiedPartFile(modFile, partPath, targetPath, FileChecksumValidator.computeChecksumFor(partPath));
+    }
+
+    private void commitVerifiedPartFile(final ServerManifest.ModFileData modFile, final Path partPath, final Path targetPath, @Nullable final HashCode checksum) {
+        moveVerifiedPartFile(modFile, partPath, targetPath, checksum);
+        checksumCache.put(targetPath, checksum);
+        if (sharedStore != null) {
+            sharedStore.store(checksum, targetPath);
+        }
+    }
+
+    private static void moveVerifiedPartFile(final ServerManifest.ModFileData modFile, final Path partPath, final Path targetPath, @Nullable final HashCode checksum) {
+        if (!modFile.checksum().equals(checksum)) {
+            deleteQuietly(partPath);
+            throw new IllegalStateException("Downloaded file " + modFile.fileName() + " did not match the expected checksum");
+        }
+        try {
+            DirHandler.replaceFile(partPath, targetPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long parseRetryAfterMillis(final HttpResponse<?> response) {
+        // Only the delay-seconds form is sent by our server, an HTTP date falls back to our own backoff
+        return response.headers().firstValue("Retry-After").map(value -> {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                return 0L;
+            }
+        }).orElse(0L);
+    }
+
+    static void deleteQuietly(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.debug("Failed to delete {}", path, e);
+        }
+    }
+
+    static long partFileLength(final Path partPath) {
+        try {
+            return Files.exists(partPath) ? Files.size(partPath) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private Path partPath(final ServerManifest.ModFileData modFile) {
+        final Path targetPath = stagedPath(modFile);
+        return targetPath.resolveSibling(targetPath.getFileName() + PART_FILE_SUFFIX);
+    }
+
+    private Path stagedPath(final ServerManifest.ModFileData modFile) {
+        return stagingDir.resolve(resolvePath(modFile).getFileName());
     }
 
     private Path resolvePath(final ServerManifest.ModFileData modFile) {
@@ -127,4 +631,33 @@ public class SimpleHttpClient {
             return null;
         }
     }
+
+    private static class ServerBusyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMillis;
+
+        private ServerBusyException(final long retryAfterMillis) {
+            super("Server is busy");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        long retryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
+    private record DownloadPlan(FetchedManifest fetched, @Nullable ServerManifest previousManifest, List<ServerManifest.ModFileData> requiredFiles, List<ServerManifest.ModFileData> stagedFiles,
+                                List<ServerManifest.ModFileData> files, Map<String, ServerManifest.ModFileData> deltaBases, Map<Path, HashCode> existingChecksums) {
+    }
+
+    // The JSON is absent when the server reported that our cached manifest was still current
+    private record FetchedManifest(ServerManifest manifest, @Nullable String json, @Nullable String etag) {
+    }
+
+    private record Peers(PeerDiscovery discovery, PeerServer server) {
+    }
+
+    private record DownloadSession(String host, ServerManifest manifest, Map<String, ServerManifest.ModFileData> deltaBases, Mirrors mirrors) {
+    }
 }
@@ -0,0 +1,150 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import cpw.mods.forge.serverpacklocator.ZipDelta;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the last few versions of every root mod that has been served, so that clients upgrading from one of them
+ * can be sent a {@link ZipDelta} instead of the whole file.
+ */
+class FileHistory {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Codec<Map<String, List<String>>> INDEX_CODEC = Codec.unboundedMap(Codec.STRING, Codec.STRING.listOf());
+
+    private final Path filesDir;
+    private final Path deltasDir;
+    private final Path indexFile;
+    private final int maxVersions;
+    // Checksums of the known versions of each root mod id, oldest first
+    private final Map<String, List<String>> versions = new HashMap<>();
+
+    private FileHistory(final Path root, final int maxVersions) {
+        this.filesDir = DirHandler.createDirIfNeeded(root.resolve("files"));
+        this.deltasDir = DirHandler.createDirIfNeeded(root.resolve("deltas"));
+        this.indexFile = root.resolve("index.json");
+        this.maxVersions = maxVersions;
+    }
+
+    static FileHistory load(final Path root, final int maxVersions) {
+        final FileHistory history = new FileHistory(DirHandler.createDirIfNeeded(root), maxVersions);
+        if (Files.exists(history.indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(history.indexFile, StandardCharsets.UTF_8)) {
+                INDEX_CODEC.parse(JsonOps.INSTANCE, JsonParser.parseReader(reader)).result()
+                        .ifPresent(index -> index.forEach((rootModId, checksums) -> history.versions.put(rootModId, new ArrayList<>(checksums))));
+            } catch (Exception e) {
+                LOGGER.warn("Failed to read file history index {}", history.indexFile, e);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Records the files of a newly built manifest and prepares deltas to them from the previous versions we know of.
+     */
+    synchronized void update(final List<ServerFileManager.ServedFile> files) {
+        for (final ServerFileManager.ServedFile served : files) {
+            final ServerManifest.ModFileData file = served.data();
+            final Path path = served.path();
+            final String checksum = file.checksum().toString();
+            final List<String> knownVersions = versions.computeIfAbsent(file.rootModId(), id -> new ArrayList<>());
+            try {
+                final Path historyPath = filesDir.resolve(checksum);
+                if (!Files.exists(historyPath)) {
+                    DirHandler.linkOrCopy(path, historyPath);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to record {} in file history", file.fileName(), e);
+                continue;
+            }
+            knownVersions.remove(checksum);
+            knownVersions.add(checksum);
+            while (knownVersions.size() > maxVersions) {
+                forget(knownVersions.remove(0));
+            }
+
+            for (final String previous : knownVersions) {
+                if (!previous.equals(checksum)) {
+                    prepareDelta(previous, checksum, path);
+                }
+            }
+        }
+        saveIndex();
+    }
+
+    @Nullable
+    Path findDelta(final HashCode from, final HashCode to) {
+        final Path delta = deltaPath(from.toString(), to.toString());
+        return Files.isRegularFile(delta) ? delta : null;
+    }
+
+    private void prepareDelta(final String from, final String to, final Path target) {
+        final Path delta = deltaPath(from, to);
+        if (Files.exists(delta)) {
+            return;
+        }
+        final Path tempFile = delta.resolveSibling(delta.getFileName() + ".tmp");
+        try {
+            if (ZipDelta.compute(filesDir.resolve(from), target, tempFile)) {
+                DirHandler.replaceFile(tempFile, delta);
+            } else {
+                LOGGER.debug("Could not compute delta for {}, it is not a zip we understand", target.getFileName());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to compute delta for {}", target.getFileName(), e);
+        }
+    }
+
+    private void forget(final String checksum) {
+        try {
+            Files.deleteIfExists(filesDir.resolve(checksum));
+            try (Stream<Path> deltas = Files.list(deltasDir)) {
+                for (final Path delta : deltas.filter(path -> isDeltaInvolving(path, checksum)).toList()) {
+                    Files.deleteIfExists(delta);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to remove old version {} from file history", checksum, e);
+        }
+    }
+
+    private static boolean isDeltaInvolving(final Path delta, final String checksum) {
+        final String name = delta.getFileName().toString();
+        return name.startsWith(checksum + "-") || name.endsWith("-" + checksum + ".delta");
+    }
+
+    private void saveIndex() {
+        final Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                GSON.toJson(INDEX_CODEC.encodeStart(JsonOps.INSTANCE, versions).result().orElseThrow(), writer);
+            }
+            DirHandler.replaceFile(tempFile, indexFile);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save file history index {}", indexFile, e);
+        }
+    }
+
+    private Path deltaPath(final String from, final String to) {
+        return deltasDir.resolve(from + "-" + to + ".delta");
+    }
+}
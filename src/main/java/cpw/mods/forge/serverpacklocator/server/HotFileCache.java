@@ -0,0 +1,150 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the contents of small, frequently requested files in direct memory, so that they are served without touching
+ * the file system. Entries are keyed by checksum and verified when loaded, and the least recently used entries are
+ * evicted once the cache grows beyond its byte budget.
+ * <p>
+ * The cache holds one reference to each buffer and hands out retained duplicates, so a buffer that is evicted while
+ * it is being sent is only freed once every response using it has been written.
+ */
+final class HotFileCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final ByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    // In access order, so that the first entry is always the least recently used
+    private final LinkedHashMap<HashCode, ByteBuf> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Files we've already found to be too large or unreadable, so that they aren't checked on every request
+    private final Set<HashCode> uncacheable = ConcurrentHashMap.newKeySet();
+    private long totalBytes;
+
+    HotFileCache(final long maxBytes, final long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+    }
+
+    /**
+     * @return a retained duplicate of the file's contents, which the caller must release, or {@code null} if the
+     * file should be read from disk instead
+     */
+    @Nullable
+    ByteBuf get(final ServerFileManager.ServedFile file) {
+        final HashCode checksum = file.data().checksum();
+        synchronized (this) {
+            final ByteBuf cached = entries.get(checksum);
+            if (cached != null) {
+                return cached.retainedDuplicate();
+            }
+        }
+        if (uncacheable.contains(checksum)) {
+            return null;
+        }
+
+        final ByteBuf loaded = load(file);
+        if (loaded == null) {
+            uncacheable.add(checksum);
+            return null;
+        }
+        synchronized (this) {
+            final ByteBuf existing = entries.get(checksum);
+            if (existing != null) {
+                // Another request loaded the same file in the meantime
+                loaded.release();
+                return existing.retainedDuplicate();
+            }
+            evict(maxBytes - loaded.readableBytes());
+            entries.put(checksum, loaded);
+            totalBytes += loaded.readableBytes();
+            return loaded.retainedDuplicate();
+        }
+    }
+
+    /**
+     * Drops every entry which isn't one of the given files, after the manifest has been rebuilt.
+     */
+    void retainOnly(final Collection<ServerFileManager.ServedFile> files) {
+        final Set<HashCode> checksums = new HashSet<>();
+        files.forEach(file -> checksums.add(file.data().checksum()));
+        uncacheable.clear();
+        synchronized (this) {
+            final Iterator<Map.Entry<HashCode, ByteBuf>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<HashCode, ByteBuf> entry = iterator.next();
+                if (!checksums.contains(entry.getKey())) {
+                    totalBytes -= entry.getValue().readableBytes();
+                    entry.getValue().release();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void evict(final long targetBytes) {
+        final Iterator<ByteBuf> iterator = entries.values().iterator();
+        while (totalBytes > targetBytes && iterator.hasNext()) {
+            final ByteBuf evicted = iterator.next();
+            totalBytes -= evicted.readableBytes();
+            evicted.release();
+            iterator.remove();
+        }
+    }
+
+    @Nullable
+    private ByteBuf load(final ServerFileManager.ServedFile file) {
+        final long size;
+        try {
+            size = Files.size(file.path());
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read size of {}", file.path(), e);
+            return null;
+        }
+        if (size > maxFileBytes) {
+            return null;
+        }
+
+        final ByteBuf buffer = ALLOCATOR.directBuffer((int) size, (int) size);
+        try (FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ)) {
+            while (buffer.isWritable()) {
+                if (buffer.writeBytes(channel, buffer.writerIndex(), buffer.writableBytes()) < 0) {
+                    throw new EOFException("File was truncated while it was being read");
+                }
+            }
+            // The file may have changed since the manifest was built, and we must never serve other bytes under its checksum
+            final HashCode checksum = Hashing.sha256().hashBytes(buffer.nioBuffer());
+            if (!checksum.equals(file.data().checksum())) {
+                LOGGER.warn("{} has changed since the manifest was built, not caching it", file.path());
+                buffer.release();
+                return null;
+            }
+            return buffer;
+        } catch (IOException e) {
+            LOGGER.debug("Failed to cache {}", file.path(), e);
+            buffer.release();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sets up the pipeline of each client connection. Over TLS the protocol is negotiated with ALPN, and on plain
+ * connections HTTP/2 is only spoken to clients which open with its connection preface, if h2c is enabled.
+ * Either way, HTTP/1.1 remains available for older clients and external tools.
+ */
+class HttpChannelInitializer extends ChannelInitializer<SocketChannel> {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAX_CONTENT_LENGTH = 2 << 19;
+
+    private final ServerFileManager fileManager;
+    private final ServerMetrics metrics;
+    private final boolean exposeMetrics;
+    @Nullable
+    private final SslContext sslContext;
+    private final boolean h2c;
+    private final SimpleHttpServer.TransferLimits limits;
+    @Nullable
+    private final GlobalTrafficShapingHandler globalShaping;
+    @Nullable
+    private final Semaphore transferPermits;
+    private final Executor fileExecutor;
+
+    HttpChannelInitializer(final ServerFileManager fileManager, final ServerMetrics metrics, final boolean exposeMetrics, @Nullable final SslContext sslContext,
+                           final boolean h2c, final SimpleHttpServer.TransferLimits limits, @Nullable final GlobalTrafficShapingHandler globalShaping,
+                           final Executor fileExecutor) {
+        this.fileManager = fileManager;
+        this.metrics = metrics;
+        this.exposeMetrics = exposeMetrics;
+        this.sslContext = sslContext;
+        this.h2c = h2c;
+        this.limits = limits;
+        this.globalShaping = globalShaping;
+        this.transferPermits = limits.maxConcurrentTransfers() > 0 ? new Semaphore(limits.maxConcurrentTransfers()) : null;
+        this.fileExecutor = fileExecutor;
+    }
+
+    @Override
+    protected void initChannel(final SocketChannel channel) {
+        metrics.connectionOpened();
+        channel.closeFuture().addListener(future -> metrics.connectionClosed());
+
+        final ChannelPipeline pipeline = channel.pipeline();
+        // Shaping goes first so that it limits the bytes actually sent, including any TLS overhead
+        if (globalShaping != null) {
+            pipeline.addLast("globalShaping", globalShaping);
+        }
+        if (limits.clientBandwidth() > 0) {
+            pipeline.addLast("shaping", new ChannelTrafficShapingHandler(limits.clientBandwidth(), 0, SimpleHttpServer.TRAFFIC_CHECK_INTERVAL_MILLIS));
+        }
+
+        if (sslContext != null) {
+            final SslHandler sslHandler = sslContext.newHandler(channel.alloc());
+            final long handshakeStart = System.nanoTime();
+            sslHandler.handshakeFuture().addListener(future -> metrics.recordTlsHandshake(System.nanoTime() - handshakeStart, future.isSuccess()));
+            pipeline.addLast("ssl", sslHandler);
+            pipeline.addLast("negotiation", new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                @Override
+                protected void configurePipeline(final ChannelHandlerContext ctx, final String protocol) {
+                    if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                        configureHttp2(ctx.pipeline());
+                    } else {
+                        configureHttp1(ctx.pipeline());
+                    }
+                }
+            });
+        } else if (h2c) {
+            pipeline.addLast("detector", new PriorKnowledgeDetector());
+        } else {
+            configureHttp1(pipeline);
+        }
+    }
+
+    private void configureHttp1(final ChannelPipeline pipeline) {
+        pipeline.addLast("codec", new HttpServerCodec());
+        pipeline.addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+        pipeline.addLast("chunked", new ChunkedWriteHandler());
+        // A file region is written in one go, so it can't be shaped, and its bytes can't pass through the SSL handler
+        final boolean zeroCopy = sslContext == null && limits.bandwidth() <= 0 && limits.clientBandwidth() <= 0;
+        pipeline.addLast("request", new RequestHandler(fileManager, metrics, exposeMetrics, transferPermits, fileExecutor, zeroCopy));
+    }
+
+    private void configureHttp2(final ChannelPipeline pipeline) {
+        // Each stream gets its own child channel whose writability follows the stream's flow control window, so the
+        // chunked writer sends file bodies only as fast as the client accepts them
+        pipeline.addLast("http2", Http2FrameCodecBuilder.forServer().build());
+        pipeline.addLast("multiplex", new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+            @Override
+            protected void initChannel(final Http2StreamChannel stream) {
+                stream.pipeline().addLast("codec", new Http2StreamFrameToHttpObjectCodec(true));
+                stream.pipeline().addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                stream.pipeline().addLast("chunked", new ChunkedWriteHandler());
+                stream.pipeline().addLast("request", new RequestHandler(fileManager, metrics, exposeMetrics, transferPermits, fileExecutor, false));
+            }
+        }));
+    }
+
+    /**
+     * Switches a plain connection to HTTP/2 if it opens with the HTTP/2 connection preface, and to HTTP/1.1 otherwise.
+     */
+    private class PriorKnowledgeDetector extends ByteToMessageDecoder {
+        private static final byte[] CONNECTION_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) {
+            final int available = Math.min(in.readableBytes(), CONNECTION_PREFACE.length);
+            for (int i = 0; i < available; i++) {
+                if (in.getByte(in.readerIndex() + i) != CONNECTION_PREFACE[i]) {
+                    configureHttp1(ctx.pipeline());
+                    ctx.pipeline().remove(this);
+                    return;
+                }
+            }
+            if (available == CONNECTION_PREFACE.length) {
+                LOGGER.debug("Client {} is using HTTP/2 with prior knowledge", ctx.channel().remoteAddress());
+                configureHttp2(ctx.pipeline());
+                ctx.pipeline().remove(this);
+            }
+        }
+    }
+}
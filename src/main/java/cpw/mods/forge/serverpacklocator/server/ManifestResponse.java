@@ -0,0 +1,112 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The serialized manifest, encoded once per build in every content encoding we serve it with.
+ * Each request is answered with a retained duplicate of these buffers, so they are never copied. The buffers are
+ * on-heap and never released, so a rebuilt manifest can replace this one while requests are still being written.
+ */
+final class ManifestResponse {
+    private final Variant identity;
+    private final Variant gzip;
+    private final Variant deflate;
+
+    private ManifestResponse(final String json) {
+        final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        final String hash = Hashing.sha256().hashBytes(bytes).toString();
+        this.identity = new Variant(null, "\"" + hash + "\"", toBuffer(bytes));
+        this.gzip = new Variant("gzip", "\"" + hash + "-gzip\"", toBuffer(compress(bytes, GZIPOutputStream::new)));
+        this.deflate = new Variant("deflate", "\"" + hash + "-deflate\"", toBuffer(compress(bytes, DeflaterOutputStream::new)));
+    }
+
+    static ManifestResponse of(final String json) {
+        return new ManifestResponse(json);
+    }
+
+    /**
+     * @return whether any of the entity tags in an {@code If-None-Match} header refer to this manifest
+     */
+    boolean matches(final String ifNoneMatch) {
+        for (final String tag : ifNoneMatch.split(",")) {
+            final String trimmed = tag.trim();
+            final String opaqueTag = trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed;
+            if (opaqueTag.equals("*") || opaqueTag.equals(identity.etag) || opaqueTag.equals(gzip.etag) || opaqueTag.equals(deflate.etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Variant select(@Nullable final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return identity;
+        }
+        if (accepts(acceptEncoding, "gzip")) {
+            return gzip;
+        } else if (accepts(acceptEncoding, "deflate")) {
+            return deflate;
+        }
+        return identity;
+    }
+
+    static boolean accepts(final String acceptEncoding, final String encoding) {
+        for (final String part : acceptEncoding.split(",")) {
+            final String[] tokens = part.trim().split(";");
+            if (!tokens[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+            for (int i = 1; i < tokens.length; i++) {
+                final String parameter = tokens[i].trim();
+                if (parameter.startsWith("q=") && isZero(parameter.substring(2))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isZero(final String quality) {
+        try {
+            return Double.parseDouble(quality) == 0.0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static ByteBuf toBuffer(final byte[] bytes) {
+        return Unpooled.wrappedBuffer(bytes).asReadOnly();
+    }
+
+    private static byte[] compress(final byte[] bytes, final CompressorFactory factory) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 4);
+        try (OutputStream compressor = factory.create(output)) {
+            compressor.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    private interface CompressorFactory {
+        OutputStream create(OutputStream output) throws IOException;
+    }
+
+    record Variant(@Nullable String contentEncoding, String etag, ByteBuf content) {
+        ByteBuf retainedContent() {
+            return content.retainedDuplicate();
+        }
+    }
+}
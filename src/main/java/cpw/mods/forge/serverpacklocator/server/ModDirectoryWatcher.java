@@ -0,0 +1,115 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a mod directory and runs a rebuild once changes to it have settled, so that a copy of many files
+ * results in a single rebuild rather than one per file.
+ */
+class ModDirectoryWatcher {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long DEBOUNCE_MILLIS = 2000;
+
+    private final Path directory;
+    private final WatchService watchService;
+    private final Runnable rebuild;
+
+    private ModDirectoryWatcher(final Path directory, final WatchService watchService, final Runnable rebuild) {
+        this.directory = directory;
+        this.watchService = watchService;
+        this.rebuild = rebuild;
+    }
+
+    /**
+     * @return the running watcher, or null if the directory can't be watched
+     */
+    @Nullable
+    static ModDirectoryWatcher start(final Path directory, final Runnable rebuild) {
+        final WatchService watchService;
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            LOGGER.error("Failed to watch {} for changes", directory, e);
+            return null;
+        }
+        try {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            LOGGER.error("Failed to watch {} for changes", directory, e);
+            closeQuietly(watchService);
+            return null;
+        }
+        final ModDirectoryWatcher watcher = new ModDirectoryWatcher(directory, watchService, rebuild);
+        final Thread thread = new Thread(watcher::run, "ServerPackLocator Watcher");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.info("Watching {} for changes", directory);
+        return watcher;
+    }
+
+    /**
+     * Stops watching. A rebuild which is already running is left to finish, but no further ones are started.
+     */
+    void close() {
+        closeQuietly(watchService);
+    }
+
+    private void run() {
+        boolean pending = false;
+        try (watchService) {
+            while (true) {
+                final WatchKey key = pending ? watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS) : watchService.take();
+                if (key == null) {
+                    pending = false;
+                    runRebuild();
+                    continue;
+                }
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (isRelevant(event)) {
+                        pending = true;
+                    }
+                }
+                if (!key.reset()) {
+                    LOGGER.warn("{} can no longer be watched, changes to it will not be picked up", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException | IOException e) {
+            LOGGER.debug("Stopped watching {}", directory, e);
+        }
+    }
+
+    private void runRebuild() {
+        LOGGER.info("Changes detected in {}, rebuilding server manifest", directory);
+        try {
+            rebuild.run();
+        } catch (Exception e) {
+            LOGGER.error("Failed to rebuild server manifest, continuing to serve the previous one", e);
+        }
+    }
+
+    private static void closeQuietly(final WatchService watchService) {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.trace("Failed to close watch service", e);
+        }
+    }
+
+    private static boolean isRelevant(final WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            return true;
+        }
+        // Ignore hidden and temporary files, such as those left by editors and in-progress copies
+        final String name = event.context().toString();
+        return !name.startsWith(".") && !name.endsWith(".tmp");
+    }
+}
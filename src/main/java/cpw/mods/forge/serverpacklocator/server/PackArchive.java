@@ -0,0 +1,310 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Streams a set of files as an uncompressed tar archive, built on the fly. Names which don't fit a plain ustar header
+ * are carried in a pax extended header.
+ * <p>
+ * Opening a file can block on the disk, so each file is opened on the file executor while the one before it is
+ * being sent. If the stream reaches a file before it is open, no chunk is returned until it is, and the transfer is
+ * resumed then.
+ */
+final class PackArchive implements ChunkedInput<ByteBuf> {
+    private static final int BLOCK_SIZE = 512;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_USTAR_NAME_LENGTH = 100;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private final List<Entry> entries;
+    private final long length;
+    private final Executor fileExecutor;
+    private final Runnable resume;
+    private int nextEntry;
+    @Nullable
+    private CompletableFuture<FileChannel> nextFile;
+    @Nullable
+    private FileChannel currentFile;
+    private long currentPosition;
+    private long currentRemaining;
+    private int currentPadding;
+    private boolean finished;
+    private long progress;
+
+    private PackArchive(final List<Entry> entries, final Executor fileExecutor, final Runnable resume) {
+        this.entries = entries;
+        this.fileExecutor = fileExecutor;
+        this.resume = resume;
+        long length = 2 * BLOCK_SIZE;
+        for (final Entry entry : entries) {
+            length += headerLength(entry.name()) + entry.size() + padding(entry.size());
+        }
+        this.length = length;
+    }
+
+    /**
+     * Measures the files up front, so that the length of the whole archive is known before it is sent, and opens the
+     * first one. This blocks on the disk, so it should be called on the file executor.
+     *
+     * @param fileExecutor where the rest of the files are opened
+     * @param resume       called once a file which held up the stream is open, from any thread, and possibly before the
+     *                     read which was held up has returned
+     */
+    static PackArchive of(final List<ServerFileManager.ServedFile> files, final Executor fileExecutor, final Runnable resume) throws IOException {
+        final List<Entry> entries = new ArrayList<>(files.size());
+        for (final ServerFileManager.ServedFile file : files) {
+            entries.add(new Entry(file.data().fileName(), file.path(), Files.size(file.path())));
+        }
+        final PackArchive archive = new PackArchive(entries, fileExecutor, resume);
+        if (!entries.isEmpty()) {
+            archive.nextFile = CompletableFuture.completedFuture(FileChannel.open(entries.get(0).path(), StandardOpenOption.READ));
+        }
+        return archive;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return finished;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (nextFile != null) {
+            // The file may still be opening, in which case it is closed as soon as it is open
+            nextFile.thenAccept(PackArchive::closeQuietly);
+            nextFile = null;
+        }
+        closeCurrentFile();
+    }
+
+    private void closeCurrentFile() throws IOException {
+        if (currentFile != null) {
+            currentFile.close();
+            currentFile = null;
+        }
+    }
+
+    private static void closeQuietly(final FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(final ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(final ByteBufAllocator allocator) throws Exception {
+        if (finished) {
+            return null;
+        }
+        final ByteBuf chunk = allocator.buffer(CHUNK_SIZE + 2 * BLOCK_SIZE);
+        try {
+            while (chunk.writerIndex() < CHUNK_SIZE && !finished) {
+                if (currentFile != null) {
+                    readFileData(chunk);
+                } else if (nextEntry < entries.size()) {
+                    if (!startEntry(chunk)) {
+                        break;
+                    }
+                } else {
+                    chunk.writeZero(2 * BLOCK_SIZE);
+                    finished = true;
+                }
+            }
+        } catch (Exception e) {
+            chunk.release();
+            throw e;
+        }
+        if (!chunk.isReadable()) {
+            chunk.release();
+            nextFile.whenComplete((file, error) -> resume.run());
+            return null;
+        }
+        progress += chunk.readableBytes();
+        return chunk;
+    }
+
+    /**
+     * @return false if the file isn't open yet
+     */
+    private boolean startEntry(final ByteBuf chunk) throws IOException {
+        final CompletableFuture<FileChannel> opening = Objects.requireNonNull(nextFile);
+        if (!opening.isDone()) {
+            return false;
+        }
+        nextFile = null;
+        try {
+            currentFile = opening.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        final Entry entry = entries.get(nextEntry++);
+        if (nextEntry < entries.size()) {
+            nextFile = open(entries.get(nextEntry).path());
+        }
+
+        writeHeaders(chunk, entry.name(), entry.size());
+        currentPosition = 0;
+        currentRemaining = entry.size();
+        currentPadding = padding(entry.size());
+        return true;
+    }
+
+    private CompletableFuture<FileChannel> open(final Path path) {
+        final CompletableFuture<FileChannel> result = new CompletableFuture<>();
+        fileExecutor.execute(() -> {
+            try {
+                result.complete(FileChannel.open(path, StandardOpenOption.READ));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private void readFileData(final ByteBuf chunk) throws IOException {
+        if (currentRemaining > 0) {
+            final int toRead = (int) Math.min(currentRemaining, CHUNK_SIZE - chunk.writerIndex());
+            final int read = chunk.writeBytes(currentFile, currentPosition, toRead);
+            if (read <= 0) {
+                throw new EOFException("File in pack was truncated while it was being sent");
+            }
+            currentPosition += read;
+            currentRemaining -= read;
+        }
+        if (currentRemaining == 0) {
+            chunk.writeZero(currentPadding);
+            closeCurrentFile();
+        }
+    }
+
+    private static void writeHeaders(final ByteBuf chunk, final String name, final long size) {
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (needsPaxHeader(name, nameBytes)) {
+            final byte[] record = paxRecord("path", name);
+            writeHeader(chunk, "PaxHeader/" + truncatedName(name), record.length, TYPE_PAX_HEADER);
+            chunk.writeBytes(record);
+            chunk.writeZero(padding(record.length));
+            writeHeader(chunk, truncatedName(name), size, TYPE_FILE);
+        } else {
+            writeHeader(chunk, name, size, TYPE_FILE);
+        }
+    }
+
+    private static void writeHeader(final ByteBuf chunk, final String name, final long size, final byte type) {
+        final byte[] header = new byte[BLOCK_SIZE];
+        putString(header, 0, 100, name);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, 0);
+        header[156] = type;
+        putString(header, 257, 6, "ustar");
+        putString(header, 263, 2, "00");
+
+        // The checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        int checksum = 0;
+        for (final byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putOctal(header, 148, 7, checksum);
+        chunk.writeBytes(header);
+    }
+
+    private static boolean needsPaxHeader(final String name, final byte[] nameBytes) {
+        return nameBytes.length > MAX_USTAR_NAME_LENGTH || nameBytes.length != name.length();
+    }
+
+    /**
+     * A best effort name for tools which don't understand pax headers.
+     */
+    private static String truncatedName(final String name) {
+        final StringBuilder ascii = new StringBuilder();
+        for (int i = 0; i < name.length() && ascii.length() < MAX_USTAR_NAME_LENGTH; i++) {
+            final char c = name.charAt(i);
+            ascii.append(c < 0x80 ? c : '_');
+        }
+        return ascii.toString();
+    }
+
+    /**
+     * A pax record is {@code "<length> <key>=<value>\n"}, where the length counts its own digits.
+     */
+    private static byte[] paxRecord(final String key, final String value) {
+        final int contentLength = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = contentLength + 1;
+        while (String.valueOf(length).length() + contentLength != length) {
+            length++;
+        }
+        return (length + " " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(final byte[] header, final int offset, final int length, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    private static void putOctal(final byte[] header, final int offset, final int length, final long value) {
+        final String octal = Long.toOctalString(value);
+        final String padded = "0".repeat(Math.max(0, length - 1 - octal.length())) + octal;
+        putString(header, offset, length - 1, padded);
+        header[offset + length - 1] = 0;
+    }
+
+    private static long headerLength(final String name) {
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (needsPaxHeader(name, nameBytes)) {
+            final int recordLength = paxRecord("path", name).length;
+            return 2 * BLOCK_SIZE + recordLength + padding(recordLength);
+        }
+        return BLOCK_SIZE;
+    }
+
+    private static int padding(final long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+
+    private record Entry(String name, Path path, long size) {
+    }
+}
@@ -1,30 +1,95 @@
 package cpw.mods.forge.serverpacklocator.server;
 
+import com.google.common.hash.HashCode;
 import cpw.mods.modlauncher.api.LamdbaExceptionUtils;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.util.Objects;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
 
     private final ServerFileManager serverFileManager;
+    private final ServerMetrics metrics;
+    private final boolean exposeMetrics;
+    @Nullable
+    private final Semaphore transferPermits;
+    private final Executor fileExecutor;
+    private final boolean zeroCopy;
+
+    // Requests on a connection are answered in order, so only one is being timed at a time
+    private ServerMetrics.Route route = ServerMetrics.Route.OTHER;
+    private long requestStart;
+    // Set while a file is being opened off the event loop. Requests which were already read in the meantime wait in the
+    // queue, as HTTP/1.1 clients may pipeline them and their responses have to go out in the same order
+    private boolean offloading;
+    private final Queue<FullHttpRequest> queuedRequests = new ArrayDeque<>();
 
-    RequestHandler(final ServerFileManager serverFileManager) {
+    RequestHandler(final ServerFileManager serverFileManager, final ServerMetrics metrics, final boolean exposeMetrics, @Nullable final Semaphore transferPermits,
+                   final Executor fileExecutor, final boolean zeroCopy) {
         this.serverFileManager = serverFileManager;
+        this.metrics = metrics;
+        this.exposeMetrics = exposeMetrics;
+        this.transferPermits = transferPermits;
+        this.fileExecutor = fileExecutor;
+        this.zeroCopy = zeroCopy;
     }
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        if (offloading) {
+            queuedRequests.add(msg.retain());
+        } else {
+            handleRequest(ctx, msg);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        updateAutoRead(ctx);
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        FullHttpRequest queued;
+        while ((queued = queuedRequests.poll()) != null) {
+            queued.release();
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void handleRequest(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        requestStart = System.nanoTime();
+        route = ServerMetrics.Route.OTHER;
         if (Objects.equals(HttpMethod.GET, msg.method())) {
             handleGet(ctx, msg);
         } else {
@@ -33,27 +98,70 @@ class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     }
 
     private void handleGet(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
-        LOGGER.info(msg.headers());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Request for {}: {}", msg.uri(), msg.headers());
+        }
 
+        final QueryStringDecoder query = new QueryStringDecoder(msg.uri());
         if (Objects.equals("/servermanifest.json", msg.uri())) {
+            route = ServerMetrics.Route.MANIFEST;
             LOGGER.info("Manifest request for client {}", determineClientIp(ctx, msg));
-            final String manifest = serverFileManager.getManifestJson();
-            buildReply(ctx, msg, HttpResponseStatus.OK, "application/json", manifest);
+            buildManifestReply(ctx, msg, serverFileManager.getManifest());
         } else if (msg.uri().startsWith("/files/")) {
+            route = ServerMetrics.Route.FILES;
             String fileName = LamdbaExceptionUtils.uncheck(() -> URLDecoder.decode(msg.uri().substring(7), StandardCharsets.UTF_8));
-            byte[] file = serverFileManager.findFile(fileName);
+            ServerFileManager.ServedFile file = serverFileManager.findFile(fileName);
             if (file == null) {
                 LOGGER.debug("Requested file {} not found", fileName);
                 build404(ctx, msg);
             } else {
-                buildFileReply(ctx, msg, fileName, file);
+                buildFileReply(ctx, msg, file, false);
             }
+        } else if (msg.uri().startsWith("/blobs/")) {
+            route = ServerMetrics.Route.BLOBS;
+            final HashCode checksum = parseChecksum(msg.uri().substring(7));
+            final ServerFileManager.ServedFile file = checksum != null ? serverFileManager.findBlob(checksum) : null;
+            if (file == null) {
+                LOGGER.debug("Requested blob {} not found", msg.uri());
+                build404(ctx, msg);
+            } else {
+                buildFileReply(ctx, msg, file, true);
+            }
+        } else if (msg.uri().startsWith("/deltas/")) {
+            route = ServerMetrics.Route.DELTAS;
+            final String[] checksums = msg.uri().substring(8).split("/");
+            final HashCode from = checksums.length == 2 ? parseChecksum(checksums[0]) : null;
+            final HashCode to = checksums.length == 2 ? parseChecksum(checksums[1]) : null;
+            if (from == null || to == null) {
+                LOGGER.debug("Requested delta {} not found", msg.uri());
+                build404(ctx, msg);
+            } else {
+                buildDeltaReply(ctx, msg, from, to);
+            }
+        } else if (Objects.equals("/pack", query.path())) {
+            route = ServerMetrics.Route.PACK;
+            final Set<String> excludedModIds = query.parameters().getOrDefault("exclude", List.of()).stream()
+                    .flatMap(ids -> Arrays.stream(ids.split(",")))
+                    .collect(Collectors.toSet());
+            buildPackReply(ctx, msg, serverFileManager.findPackFiles(excludedModIds));
+        } else if (exposeMetrics && Objects.equals("/metrics", msg.uri())) {
+            route = ServerMetrics.Route.METRICS;
+            buildReply(ctx, msg, HttpResponseStatus.OK, METRICS_CONTENT_TYPE, metrics.export());
         } else {
             LOGGER.debug("Failed to understand message {}", msg);
             build404(ctx, msg);
         }
     }
 
+    @Nullable
+    private static HashCode parseChecksum(final String hex) {
+        try {
+            return HashCode.fromString(hex.toLowerCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     private String determineClientIp(final ChannelHandlerContext ctx, final FullHttpRequest msg)
     {
         if (msg.headers().contains("X-Forwarded-For"))
@@ -84,16 +192,369 @@ class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
         resp.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
         HttpUtil.setContentLength(resp, content.writerIndex());
-        ctx.writeAndFlush(resp);
+        finishRequest(ctx.writeAndFlush(resp), status, null, 0);
     }
 
-    private void buildFileReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String fileName, final byte[] file) {
-        final ByteBuf content = Unpooled.wrappedBuffer(file);
-        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+    private void buildManifestReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final ManifestResponse manifest) {
+        final String ifNoneMatch = msg.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        final ManifestResponse.Variant variant = manifest.select(msg.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        final FullHttpResponse resp;
+        if (ifNoneMatch != null && manifest.matches(ifNoneMatch)) {
+            resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+            HttpUtil.setContentLength(resp, 0);
+        } else {
+            resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, variant.retainedContent());
+            resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+            if (variant.contentEncoding() != null) {
+                resp.headers().set(HttpHeaderNames.CONTENT_ENCODING, variant.contentEncoding());
+            }
+            HttpUtil.setContentLength(resp, resp.content().readableBytes());
+        }
         HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
-        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
-        resp.headers().set("filename", fileName);
+        resp.headers().set(HttpHeaderNames.ETAG, variant.etag());
+        resp.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        resp.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        finishRequest(ctx.writeAndFlush(resp), resp.status(), "servermanifest.json", resp.content().readableBytes());
+    }
+
+    private void buildBusyReply(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        final ByteBuf content = Unpooled.copiedBuffer("Too many downloads in progress", StandardCharsets.UTF_8);
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, content);
+        HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        resp.headers().set(HttpHeaderNames.RETRY_AFTER, RETRY_AFTER_SECONDS);
         HttpUtil.setContentLength(resp, content.writerIndex());
-        ctx.writeAndFlush(resp);
+        finishRequest(ctx.writeAndFlush(resp), resp.status(), null, 0);
+    }
+
+    private void buildFileReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final ServerFileManager.ServedFile file, final boolean immutable) {
+        if (!acquireTransfer(ctx, msg, file.data().fileName())) {
+            return;
+        }
+        sendFile(ctx, msg, () -> openFile(file.data().fileName(), file.path(), file), file.etag(), immutable);
+    }
+
+    private void buildDeltaReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final HashCode from, final HashCode to) {
+        if (!acquireTransfer(ctx, msg, "delta " + from + "-" + to)) {
+            return;
+        }
+        final String uri = msg.uri();
+        sendFile(ctx, msg, () -> {
+            final Path delta = serverFileManager.findDelta(from, to);
+            if (delta == null) {
+                LOGGER.debug("Requested delta {} not found", uri);
+                return null;
+            }
+            return openFile(delta.getFileName().toString(), delta, null);
+        }, "\"" + from + "-" + to + "\"", true);
+    }
+
+    private void sendFile(final ChannelHandlerContext ctx, final FullHttpRequest msg, final Supplier<FileBody> open, final String etag, final boolean immutable) {
+        if (!offload(ctx, msg, open, body -> writeFile(ctx, msg, body, etag, immutable))) {
+            releaseTransfer();
+            buildBusyReply(ctx, msg);
+        }
+    }
+
+    /**
+     * Opens a file for sending, from the hot cache if it is given a file from the manifest that the cache holds. This
+     * can block on the disk, so it only ever runs on the file executor.
+     *
+     * @return the opened file, or null if it couldn't be opened
+     */
+    @Nullable
+    private FileBody openFile(final String fileName, final Path source, @Nullable final ServerFileManager.ServedFile cacheable) {
+        final ByteBuf cached = cacheable != null ? serverFileManager.findCachedContent(cacheable) : null;
+        if (cached != null) {
+            return new FileBody(fileName, cached, null, cached.readableBytes());
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(source.toFile(), "r");
+            return new FileBody(fileName, null, raf, raf.length());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to open file {}", fileName, e);
+            if (raf != null) {
+                closeQuietly(raf);
+            }
+            return null;
+        }
+    }
+
+    private void writeFile(final ChannelHandlerContext ctx, final FullHttpRequest msg, @Nullable final FileBody body, final String etag, final boolean immutable) {
+        if (body == null) {
+            releaseTransfer();
+            build404(ctx, msg);
+            return;
+        }
+
+        final ByteRange range = selectRange(msg, etag, body.length());
+        if (range == ByteRange.UNSATISFIABLE) {
+            body.close();
+            releaseTransfer();
+            FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+            resp.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + body.length());
+            HttpUtil.setContentLength(resp, 0);
+            finishRequest(ctx.writeAndFlush(resp), resp.status(), null, 0);
+            return;
+        }
+
+        final long offset = range != null ? range.start() : 0;
+        final long count = range != null ? range.length() : body.length();
+        HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, range != null ? HttpResponseStatus.PARTIAL_CONTENT : HttpResponseStatus.OK);
+        HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
+        resp.headers().set("filename", body.fileName());
+        resp.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        resp.headers().set(HttpHeaderNames.ETAG, etag);
+        if (immutable) {
+            // Blobs are addressed by their content, so any cache in front of us may keep them forever
+            resp.headers().set(HttpHeaderNames.CACHE_CONTROL, "public, max-age=31536000, immutable");
+        }
+        if (range != null) {
+            resp.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes " + range.start() + "-" + range.end() + "/" + body.length());
+        }
+        HttpUtil.setContentLength(resp, count);
+        ctx.write(resp);
+
+        // The file contents never touch the heap: a shared buffer when the file is cached, sendfile when the socket is
+        // plain, and chunked reads into pooled buffers when the bytes need to pass through the SSL or traffic shaping
+        // handlers first
+        final ChannelFuture transfer;
+        if (body.cached() != null) {
+            // The slice shares the duplicate's reference, which is released once it has been written
+            transfer = ctx.writeAndFlush(new DefaultLastHttpContent(body.cached().slice((int) offset, (int) count)));
+        } else if (zeroCopy) {
+            ctx.write(new DefaultFileRegion(body.file().getChannel(), offset, count));
+            transfer = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        } else {
+            try {
+                transfer = ctx.writeAndFlush(new HttpChunkedInput(new ChunkedNioFile(body.file().getChannel(), offset, count, FILE_CHUNK_SIZE)));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to stream file {}", body.fileName(), e);
+                body.close();
+                releaseTransfer();
+                ctx.close();
+                return;
+            }
+        }
+        transfer.addListener(future -> releaseTransfer());
+        finishRequest(transfer, resp.status(), body.fileName(), count);
+    }
+
+    private void buildPackReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final List<ServerFileManager.ServedFile> files) {
+        if (!acquireTransfer(ctx, msg, "pack")) {
+            return;
+        }
+        final Runnable resume = () -> ctx.executor().execute(() -> resumeTransfer(ctx));
+        if (!offload(ctx, msg, () -> preparePack(files, resume), archive -> writePack(ctx, msg, files.size(), archive))) {
+            releaseTransfer();
+            buildBusyReply(ctx, msg);
+        }
+    }
+
+    /**
+     * Looks up the size of every file in the pack and opens the first one, which can block on the disk, so it only
+     * ever runs on the file executor.
+     */
+    @Nullable
+    private PackArchive preparePack(final List<ServerFileManager.ServedFile> files, final Runnable resume) {
+        try {
+            return PackArchive.of(files, fileExecutor, resume);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to prepare pack of {} files", files.size(), e);
+            return null;
+        }
+    }
+
+    private void writePack(final ChannelHandlerContext ctx, final FullHttpRequest msg, final int fileCount, @Nullable final PackArchive archive) {
+        if (archive == null) {
+            releaseTransfer();
+            buildReply(ctx, msg, HttpResponseStatus.INTERNAL_SERVER_ERROR, "text/plain", "Failed to prepare pack");
+            return;
+        }
+        LOGGER.info("Sending pack of {} files ({} bytes) to client {}", fileCount, archive.length(), determineClientIp(ctx, msg));
+
+        HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/x-tar");
+        resp.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        HttpUtil.setContentLength(resp, archive.length());
+        ctx.write(resp);
+
+        final ChannelFuture transfer = ctx.writeAndFlush(new HttpChunkedInput(archive));
+        transfer.addListener(future -> releaseTransfer());
+        finishRequest(transfer, resp.status(), "pack", archive.length());
+    }
+
+    private static void resumeTransfer(final ChannelHandlerContext ctx) {
+        final ChunkedWriteHandler chunkedWriter = ctx.pipeline().get(ChunkedWriteHandler.class);
+        if (chunkedWriter != null) {
+            chunkedWriter.resumeTransfer();
+        }
+    }
+
+    /**
+     * Runs a task which may block on the disk on the file executor, and hands its result, or null if it failed, to
+     * the reply back on the event loop. The connection stops reading until then, so that one client can't queue up
+     * more work than a single request.
+     *
+     * @return false if the file executor is saturated, in which case the request should be turned away
+     */
+    private <T> boolean offload(final ChannelHandlerContext ctx, final FullHttpRequest msg, final Supplier<T> task, final Consumer<T> reply) {
+        final CompletableFuture<T> result;
+        try {
+            result = CompletableFuture.supplyAsync(task, fileExecutor);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Turning away request for {}, too many files are waiting to be opened", msg.uri());
+            return false;
+        }
+        msg.retain();
+        offloading = true;
+        updateAutoRead(ctx);
+        result.whenCompleteAsync((value, error) -> {
+            try {
+                if (error != null) {
+                    LOGGER.warn("Failed to prepare response to {}", msg.uri(), error);
+                }
+                reply.accept(error == null ? value : null);
+            } finally {
+                msg.release();
+                offloading = false;
+                handleQueuedRequests(ctx);
+            }
+        }, ctx.executor());
+        return true;
+    }
+
+    private void handleQueuedRequests(final ChannelHandlerContext ctx) {
+        FullHttpRequest next;
+        while (!offloading && (next = queuedRequests.poll()) != null) {
+            try {
+                handleRequest(ctx, next);
+            } finally {
+                next.release();
+            }
+        }
+        updateAutoRead(ctx);
+    }
+
+    /**
+     * Only reads more requests while none is waiting on the disk and the client is keeping up with its responses, so
+     * that a slow client is held back by its own connection rather than buffering more on ours.
+     */
+    private void updateAutoRead(final ChannelHandlerContext ctx) {
+        ctx.channel().config().setAutoRead(!offloading && ctx.channel().isWritable());
+    }
+
+    private boolean acquireTransfer(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String target) {
+        if (transferPermits != null && !transferPermits.tryAcquire()) {
+            LOGGER.debug("Turning away request for {}, too many transfers in progress", target);
+            buildBusyReply(ctx, msg);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a request once the last part of its response has been written.
+     */
+    private void finishRequest(final ChannelFuture lastWrite, final HttpResponseStatus status, @Nullable final String fileName, final long bytes) {
+        final ServerMetrics.Route route = this.route;
+        final long start = requestStart;
+        lastWrite.addListener(future -> {
+            metrics.recordRequest(route, status.code(), System.nanoTime() - start);
+            if (fileName != null && future.isSuccess()) {
+                metrics.recordBytesServed(fileName, bytes);
+            }
+        });
+    }
+
+    private void releaseTransfer() {
+        if (transferPermits != null) {
+            transferPermits.release();
+        }
+    }
+
+    /**
+     * @return the requested range, or null if the whole file should be sent
+     */
+    @Nullable
+    private static ByteRange selectRange(final FullHttpRequest msg, final String etag, final long length) {
+        final String range = msg.headers().get(HttpHeaderNames.RANGE);
+        if (range == null) {
+            return null;
+        }
+        // A range is only valid against the representation the client already has part of
+        final String ifRange = msg.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag)) {
+            return null;
+        }
+        return ByteRange.parse(range, length);
+    }
+
+    private static void closeQuietly(final RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOGGER.trace("Failed to close file", e);
+        }
+    }
+
+    /**
+     * A file opened for sending, held either in memory by the hot cache or open on disk.
+     */
+    private record FileBody(String fileName, @Nullable ByteBuf cached, @Nullable RandomAccessFile file, long length) {
+        void close() {
+            if (cached != null) {
+                cached.release();
+            } else if (file != null) {
+                closeQuietly(file);
+            }
+        }
+    }
+
+    record ByteRange(long start, long end) {
+        static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+        /**
+         * Parses a single-range {@code Range} header. Multiple ranges and malformed headers are ignored, as the
+         * specification allows, and the whole file is sent instead.
+         */
+        @Nullable
+        static ByteRange parse(final String header, final long length) {
+            if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+                return null;
+            }
+            final String spec = header.substring(6).trim();
+            final int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                final String first = spec.substring(0, dash).trim();
+                final String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    final long suffixLength = Long.parseLong(last);
+                    if (suffixLength <= 0 || length == 0) {
+                        return UNSATISFIABLE;
+                    }
+                    return new ByteRange(Math.max(0, length - suffixLength), length - 1);
+                }
+                final long start = Long.parseLong(first);
+                final long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (start >= length) {
+                    return UNSATISFIABLE;
+                }
+                return start <= end ? new ByteRange(start, end) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        long length() {
+            return end - start + 1;
+        }
     }
 }
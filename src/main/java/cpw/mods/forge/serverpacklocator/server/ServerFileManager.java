@@ -1,95 +1,179 @@
 package cpw.mods.forge.serverpacklocator.server;
 
 import com.google.common.hash.HashCode;
-import cpw.mods.forge.serverpacklocator.DirHandler;
-import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
-import cpw.mods.forge.serverpacklocator.PackBuilder;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
+import cpw.mods.forge.serverpacklocator.ModMetadataIndex;
 import cpw.mods.forge.serverpacklocator.ServerManifest;
+import io.netty.buffer.ByteBuf;
 import net.minecraftforge.forgespi.locating.IModFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class ServerFileManager {
     private static final Logger LOGGER = LogManager.getLogger();
     private final Path manifestPath;
-    private final List<Path> modRoots;
     private final String forgeVersion;
-    private Set<String> filesInManifest = Set.of();
+    private final List<String> mirrors;
+    private final ChecksumCache checksumCache;
+    private final ModMetadataIndex metadataIndex;
     @Nullable
-    private String manifestJson;
+    private final FileHistory fileHistory;
+    private final ServerMetrics metrics;
+    @Nullable
+    private final HotFileCache hotFileCache;
+    // Replaced as a whole when the manifest is rebuilt, so requests always see a consistent view of the pack
+    @Nullable
+    private volatile Snapshot snapshot;
 
-    ServerFileManager(final Path manifestPath, final List<Path> modRoots, final String forgeVersion) {
+    ServerFileManager(final Path manifestPath, final String forgeVersion, final List<String> mirrors, final ChecksumCache checksumCache, final ModMetadataIndex metadataIndex,
+                      @Nullable final FileHistory fileHistory, final ServerMetrics metrics, @Nullable final HotFileCache hotFileCache) {
         this.manifestPath = manifestPath;
-        this.modRoots = modRoots;
         this.forgeVersion = forgeVersion;
+        this.mirrors = mirrors;
+        this.checksumCache = checksumCache;
+        this.metadataIndex = metadataIndex;
+        this.fileHistory = fileHistory;
+        this.metrics = metrics;
+        this.hotFileCache = hotFileCache;
     }
 
-    String getManifestJson() {
-        return Objects.requireNonNull(manifestJson, "Manifest has not been initialized");
+    private Snapshot snapshot() {
+        return Objects.requireNonNull(snapshot, "Manifest has not been initialized");
+    }
+
+    ManifestResponse getManifest() {
+        return snapshot().manifest();
     }
 
     @Nullable
-    byte[] findFile(final String fileName) {
-        try {
-            Path path = findFilePath(fileName);
-            if (path == null) {
-                LOGGER.warn("Requested mod file not in servermods directory: {}", fileName);
-                return null;
-            }
-            return Files.readAllBytes(path);
-        } catch (IOException e) {
-            LOGGER.warn("Failed to read file {}", fileName, e);
-            return null;
+    ServedFile findFile(final String fileName) {
+        final ServedFile file = snapshot().filesByName().get(fileName);
+        if (file == null) {
+            LOGGER.warn("Requested mod file not in servermods directory: {}", fileName);
         }
+        return file;
     }
 
     @Nullable
-    private Path findFilePath(final String fileName) {
-        if (!filesInManifest.contains(fileName)) {
-            return null;
-        }
-        for (final Path root : modRoots) {
-            final Path path = DirHandler.resolveDirectChild(root, fileName);
-            if (path != null && Files.exists(path)) {
-                return path;
-            }
-        }
-        return null;
+    ServedFile findBlob(final HashCode checksum) {
+        return snapshot().filesByChecksum().get(checksum);
     }
 
-    void buildManifest(final List<IModFile> files) {
-        final ServerManifest manifest = generateManifest(files);
-        manifestJson = manifest.toJson();
-        filesInManifest = manifest.files().stream().map(ServerManifest.ModFileData::fileName).collect(Collectors.toSet());
+    /**
+     * @return the files in the manifest which don't belong to any of the given mod ids, in manifest order
+     */
+    List<ServedFile> findPackFiles(final Set<String> excludedModIds) {
+        return snapshot().files().stream()
+                .filter(file -> !excludedModIds.contains(file.data().rootModId()))
+                .toList();
+    }
+
+    /**
+     * @return a retained buffer holding the file's contents, which the caller must release, or {@code null} if the
+     * file should be read from disk
+     */
+    @Nullable
+    ByteBuf findCachedContent(final ServedFile file) {
+        return hotFileCache != null ? hotFileCache.get(file) : null;
+    }
+
+    @Nullable
+    Path findDelta(final HashCode from, final HashCode to) {
+        return fileHistory != null ? fileHistory.findDelta(from, to) : null;
+    }
+
+    synchronized void buildManifest(final List<IModFile> files) {
+        final long start = System.nanoTime();
+        final List<ServedFile> servedFiles = hashFiles(files);
+        final ServerManifest manifest = generateManifest(servedFiles);
+        checksumCache.save();
+        metadataIndex.save();
+        if (fileHistory != null) {
+            fileHistory.update(servedFiles);
+        }
+        snapshot = new Snapshot(
+                ManifestResponse.of(manifest.toJson()),
+                servedFiles,
+                servedFiles.stream().collect(Collectors.toMap(file -> file.data().fileName(), Function.identity(), (first, second) -> first)),
+                buildChecksumIndex(servedFiles)
+        );
+        if (hotFileCache != null) {
+            hotFileCache.retainOnly(servedFiles);
+        }
+        metrics.recordManifestBuild(System.nanoTime() - start);
+        LOGGER.info("Published server manifest with {} files", manifest.files().size());
 
         // We never use the serialised file, but some setups expose the manifest through an external HTTP server
         manifest.save(manifestPath);
     }
 
-    private ServerManifest generateManifest(final List<IModFile> modList) {
-        LOGGER.debug("Generating manifest");
+    private static Map<HashCode, ServedFile> buildChecksumIndex(final List<ServedFile> files) {
+        final Map<HashCode, ServedFile> index = new HashMap<>();
+        for (final ServedFile file : files) {
+            index.putIfAbsent(file.data().checksum(), file);
+        }
+        return Map.copyOf(index);
+    }
 
-        final ServerManifest.Builder manifest = new ServerManifest.Builder()
-                .setForgeVersion(forgeVersion);
+    /**
+     * Hashes the files to serve, keeping the path each one was hashed from. Several mod directories can hold files
+     * of the same name, so the name alone isn't enough to find the file again.
+     */
+    private List<ServedFile> hashFiles(final List<IModFile> modList) {
+        final List<IModFile> files = modList.stream()
+                .filter(file -> !file.getFileName().equals("serverpackutility.jar"))
+                .toList();
+        final List<Path> paths = files.stream().map(IModFile::getFilePath).toList();
+        final Map<Path, HashCode> checksums = checksumCache.computeChecksumsFor(paths);
+        // Older clients only know the legacy digest, and would otherwise never match the files they already have
+        final Map<Path, HashCode> legacyChecksums = checksumCache.computeLegacyChecksumsFor(paths);
 
-        for (final IModFile file : modList) {
-            if (file.getFileName().equals("serverpackutility.jar")) {
-                continue;
-            }
-            final HashCode checksum = FileChecksumValidator.computeChecksumFor(file.getFilePath());
-            if (checksum == null) {
+        final List<ServedFile> served = new ArrayList<>();
+        for (final IModFile file : files) {
+            final HashCode checksum = checksums.get(file.getFilePath());
+            final HashCode legacyChecksum = legacyChecksums.get(file.getFilePath());
+            if (checksum == null || legacyChecksum == null) {
                 throw new IllegalArgumentException("Invalid checksum for file " + file.getFileName());
             }
-            manifest.add(PackBuilder.getRootModId(file), checksum, file.getFileName());
+            final ServerManifest.ModFileData data = new ServerManifest.ModFileData(metadataIndex.get(file, checksum).rootModId(), checksum, file.getFileName(), legacyChecksum);
+            served.add(new ServedFile(file.getFilePath(), data));
         }
+        return List.copyOf(served);
+    }
+
+    private ServerManifest generateManifest(final List<ServedFile> files) {
+        LOGGER.debug("Generating manifest");
 
+        final ServerManifest.Builder manifest = new ServerManifest.Builder()
+                .setForgeVersion(forgeVersion)
+                .addFeature(ServerManifest.FEATURE_SHA256)
+                .addFeature(ServerManifest.FEATURE_BLOBS)
+                .addFeature(ServerManifest.FEATURE_PACK);
+        if (fileHistory != null) {
+            manifest.addFeature(ServerManifest.FEATURE_DELTAS);
+        }
+        mirrors.forEach(manifest::addMirror);
+        for (final ServedFile file : files) {
+            manifest.add(file.data().rootModId(), file.data().checksum(), file.data().fileName(), file.data().legacyChecksum());
+        }
         return manifest.build();
     }
+
+    private record Snapshot(ManifestResponse manifest, List<ServedFile> files, Map<String, ServedFile> filesByName, Map<HashCode, ServedFile> filesByChecksum) {
+    }
+
+    record ServedFile(Path path, ServerManifest.ModFileData data) {
+        /**
+         * Files are identified by their checksum, so it doubles as a strong entity tag
+         */
+        String etag() {
+            return "\"" + data.checksum() + "\"";
+        }
+    }
 }
@@ -0,0 +1,162 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import javax.annotation.Nullable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the pack server, exported in the Prometheus text format. Everything recorded on the request path is
+ * an adder, so I/O threads never contend on a lock to update them.
+ */
+public final class ServerMetrics {
+    private static final double[] DURATION_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60};
+
+    private final Map<RequestKey, LongAdder> requests = new ConcurrentHashMap<>();
+    private final Map<Route, Histogram> requestDurations = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesServed = new ConcurrentHashMap<>();
+    private final LongAdder activeConnections = new LongAdder();
+    private final Histogram tlsHandshakeDurations = new Histogram(DURATION_BUCKETS);
+    private final LongAdder tlsHandshakeFailures = new LongAdder();
+    private final Histogram manifestBuildDurations = new Histogram(DURATION_BUCKETS);
+
+    void recordRequest(final Route route, final int status, final long durationNanos) {
+        requests.computeIfAbsent(new RequestKey(route, status), key -> new LongAdder()).increment();
+        requestDurations.computeIfAbsent(route, r -> new Histogram(DURATION_BUCKETS)).record(durationNanos);
+    }
+
+    void recordBytesServed(final String fileName, final long bytes) {
+        bytesServed.computeIfAbsent(fileName, name -> new LongAdder()).add(bytes);
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void recordTlsHandshake(final long durationNanos, final boolean success) {
+        if (success) {
+            tlsHandshakeDurations.record(durationNanos);
+        } else {
+            tlsHandshakeFailures.increment();
+        }
+    }
+
+    void recordManifestBuild(final long durationNanos) {
+        manifestBuildDurations.record(durationNanos);
+    }
+
+    String export() {
+        final StringBuilder output = new StringBuilder();
+
+        header(output, "spl_http_requests_total", "counter", "HTTP requests by route and response status");
+        new TreeMap<>(Map.copyOf(requests)).forEach((key, count) ->
+                sample(output, "spl_http_requests_total", "route=\"" + key.route().label() + "\",status=\"" + key.status() + "\"", count.sum()));
+
+        header(output, "spl_http_request_duration_seconds", "histogram", "Time from receiving a request until its response was written");
+        new TreeMap<>(Map.copyOf(requestDurations)).forEach((route, histogram) ->
+                histogram.export(output, "spl_http_request_duration_seconds", "route=\"" + route.label() + "\""));
+
+        header(output, "spl_bytes_served_total", "counter", "Bytes sent by file");
+        new TreeMap<>(Map.copyOf(bytesServed)).forEach((fileName, bytes) ->
+                sample(output, "spl_bytes_served_total", "file=\"" + escape(fileName) + "\"", bytes.sum()));
+
+        header(output, "spl_active_connections", "gauge", "Currently open client connections");
+        sample(output, "spl_active_connections", null, activeConnections.sum());
+
+        header(output, "spl_tls_handshake_duration_seconds", "histogram", "Time taken by successful TLS handshakes");
+        tlsHandshakeDurations.export(output, "spl_tls_handshake_duration_seconds", null);
+
+        header(output, "spl_tls_handshake_failures_total", "counter", "TLS handshakes which failed");
+        sample(output, "spl_tls_handshake_failures_total", null, tlsHandshakeFailures.sum());
+
+        header(output, "spl_manifest_build_duration_seconds", "histogram", "Time taken to build the server manifest");
+        manifestBuildDurations.export(output, "spl_manifest_build_duration_seconds", null);
+
+        return output.toString();
+    }
+
+    private static void header(final StringBuilder output, final String name, final String type, final String help) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder output, final String name, @Nullable final String labels, final Object value) {
+        output.append(name);
+        if (labels != null) {
+            output.append('{').append(labels).append('}');
+        }
+        output.append(' ').append(value).append('\n');
+    }
+
+    private static String escape(final String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    enum Route {
+        MANIFEST,
+        FILES,
+        BLOBS,
+        DELTAS,
+        PACK,
+        METRICS,
+        OTHER;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private record RequestKey(Route route, int status) implements Comparable<RequestKey> {
+        @Override
+        public int compareTo(final RequestKey other) {
+            final int byRoute = route.compareTo(other.route);
+            return byRoute != 0 ? byRoute : Integer.compare(status, other.status);
+        }
+    }
+
+    private static final class Histogram {
+        private final double[] bounds;
+        // One more than the bounds, for observations above the largest of them
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(final double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(final long durationNanos) {
+            final double seconds = durationNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            int bucket = 0;
+            while (bucket < bounds.length && seconds > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(seconds);
+        }
+
+        void export(final StringBuilder output, final String name, @Nullable final String labels) {
+            final String prefix = labels != null ? labels + "," : "";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(output, name + "_bucket", prefix + "le=\"" + bounds[i] + "\"", cumulative);
+            }
+            cumulative += buckets[bounds.length].sum();
+            sample(output, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            sample(output, name + "_sum", labels, sum.sum());
+            sample(output, name + "_count", labels, cumulative);
+        }
+    }
+}
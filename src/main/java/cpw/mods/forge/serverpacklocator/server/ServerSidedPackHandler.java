@@ -2,11 +2,18 @@ package cpw.mods.forge.serverpacklocator.server;
 
 import com.electronwill.nightconfig.core.ConfigFormat;
 import com.electronwill.nightconfig.core.file.FileConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
 import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
+import cpw.mods.forge.serverpacklocator.ModMetadataIndex;
 import cpw.mods.forge.serverpacklocator.PackBuilder;
 import cpw.mods.forge.serverpacklocator.SidedPackHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import net.minecraftforge.forgespi.locating.IModDirectoryLocatorFactory;
 import net.minecraftforge.forgespi.locating.IModFile;
 import net.minecraftforge.forgespi.locating.IModLocator;
@@ -19,18 +26,31 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
 public class ServerSidedPackHandler extends SidedPackHandler {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int DEFAULT_DELTA_HISTORY = 3;
+    private static final int DEFAULT_HOT_CACHE_MAX_FILE_KB = 1024;
     private final Path clientModsDir;
     private ServerFileManager serverFileManager;
+    private ChecksumCache checksumCache;
+    private ModMetadataIndex metadataIndex;
 
     private Set<String> excludedModIds = Set.of();
+    private boolean watchClientMods;
     @Nullable
     private IModLocator serverModLocator;
     @Nullable
     private IModLocator clientModLocator;
+    // The server mods found by the latest scan, which the client mods watcher rebuilds the manifest around
+    private volatile List<IModFile> scannedServerMods = List.of();
+    @Nullable
+    private ModDirectoryWatcher clientModsWatcher;
 
     public ServerSidedPackHandler(final Path serverModsDir, final Path clientModsDir) {
         super(serverModsDir);
@@ -61,35 +81,123 @@ public class ServerSidedPackHandler extends SidedPackHandler {
             throw new IllegalArgumentException("Pack locator has not been initialized");
         }
 
-        final PackBuilder packBuilder = new PackBuilder(excludedModIds);
+        final PackBuilder packBuilder = new PackBuilder(excludedModIds, checksumCache, metadataIndex);
+
+        // Each directory is hashed and has its metadata read as soon as its own scan finishes, while the other
+        // directory may still be scanning
+        final ExecutorService scanExecutor = createScanExecutor();
+        final ScannedPack serverPack;
+        final ScannedPack clientPack;
+        try {
+            final CompletableFuture<ScannedPack> serverScan = CompletableFuture.supplyAsync(() -> scan(serverModLocator, packBuilder), scanExecutor);
+            final CompletableFuture<ScannedPack> clientScan = CompletableFuture.supplyAsync(() -> scan(clientModLocator, packBuilder), scanExecutor);
+            serverPack = join(serverScan);
+            clientPack = join(clientScan);
+        } finally {
+            scanExecutor.shutdown();
+        }
+
+        final List<ModFileOrException> result = new ArrayList<>(serverPack.errors());
+        result.addAll(clientPack.errors());
+
+        final Map<IModFile, ModMetadataIndex.ModMetadata> metadata = new HashMap<>(serverPack.metadata());
+        metadata.putAll(clientPack.metadata());
+        final PackBuilder.ModLists modLists = packBuilder.buildModLists(serverPack.files(), clientPack.files(), metadata);
 
-        final List<ModFileOrException> result = new ArrayList<>();
-        final List<IModFile> combinedPack = new ArrayList<>();
-        final List<IModFile> serverPack = new ArrayList<>();
+        serverFileManager.buildManifest(modLists.manifestFiles());
+        // Only the server mods are handed to FML, the client mods were only needed to build the manifest
+        clientPack.files().forEach(ServerSidedPackHandler::closeJar);
 
-        for (final ModFileOrException mod : serverModLocator.scanMods()) {
+        for (final IModFile file : modLists.serverFiles()) {
+            result.add(new ModFileOrException(file, null));
+        }
+
+        // Server mods can't be swapped in a running game, so only the client mods are picked up again
+        scannedServerMods = serverPack.files();
+        if (watchClientMods && clientModsWatcher == null) {
+            startClientModsWatcher();
+        }
+
+        return result;
+    }
+
+    /**
+     * One thread for each directory. The locators load classes through the context class loader, which has to be
+     * the one FML calls us with rather than whatever a shared pool's threads happen to have.
+     */
+    private static ExecutorService createScanExecutor() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return Executors.newFixedThreadPool(2, new ThreadFactoryBuilder()
+                .setNameFormat("ServerPackLocator Scan - %d")
+                .setDaemon(true)
+                .setThreadFactory(runnable -> {
+                    final Thread thread = new Thread(runnable);
+                    thread.setContextClassLoader(contextClassLoader);
+                    return thread;
+                })
+                .build());
+    }
+
+    private static ScannedPack scan(final IModLocator locator, final PackBuilder packBuilder) {
+        final List<IModFile> files = new ArrayList<>();
+        final List<ModFileOrException> errors = new ArrayList<>();
+        for (final ModFileOrException mod : locator.scanMods()) {
             if (mod.file() != null) {
-                serverPack.add(mod.file());
-                combinedPack.add(mod.file());
+                files.add(mod.file());
             } else if (mod.ex() != null) {
-                result.add(mod);
+                errors.add(mod);
             }
         }
-        for (final ModFileOrException mod : clientModLocator.scanMods()) {
-            if (mod.file() != null) {
-                combinedPack.add(mod.file());
-            } else if (mod.ex() != null) {
-                result.add(mod);
+        return new ScannedPack(List.copyOf(files), List.copyOf(errors), packBuilder.readMetadata(files));
+    }
+
+    private static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
             }
+            throw e;
         }
+    }
 
-        serverFileManager.buildManifest(packBuilder.buildModList(combinedPack));
+    private void startClientModsWatcher() {
+        final ModDirectoryWatcher watcher = ModDirectoryWatcher.start(clientModsDir, this::rebuildManifest);
+        if (watcher != null) {
+            clientModsWatcher = watcher;
+            Runtime.getRuntime().addShutdownHook(new Thread(watcher::close, "ServerPackLocator Watcher Shutdown"));
+        }
+    }
 
-        for (final IModFile file : packBuilder.buildModList(serverPack)) {
-            result.add(new ModFileOrException(file, null));
+    private void rebuildManifest() {
+        final List<IModFile> clientMods = new ArrayList<>();
+        for (final ModFileOrException mod : Objects.requireNonNull(clientModLocator).scanMods()) {
+            if (mod.file() != null) {
+                clientMods.add(mod.file());
+            } else if (mod.ex() != null) {
+                LOGGER.warn("Failed to load client mod", mod.ex());
+            }
+        }
+        final List<IModFile> combinedPack = new ArrayList<>(scannedServerMods);
+        combinedPack.addAll(clientMods);
+        try {
+            serverFileManager.buildManifest(new PackBuilder(excludedModIds, checksumCache, metadataIndex).buildModList(combinedPack));
+        } finally {
+            clientMods.forEach(ServerSidedPackHandler::closeJar);
         }
+    }
 
-        return result;
+    /**
+     * Every scan opens each jar as a file system of its own, which keeps the jar open, and locked on Windows, until
+     * it is closed.
+     */
+    private static void closeJar(final IModFile file) {
+        try {
+            file.getSecureJar().getRootPath().getFileSystem().close();
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Failed to close {}", file.getFilePath(), e);
+        }
     }
 
     @Override
@@ -105,19 +213,33 @@ public class ServerSidedPackHandler extends SidedPackHandler {
         final FileConfig config = getConfig();
         final int port = config.getOptionalInt("server.port").orElse(8443);
         excludedModIds = Set.copyOf(config.<List<String>>getOptional("server.excludedModIds").orElse(List.of()));
+        watchClientMods = config.<Boolean>getOptional("server.watchClientMods").orElse(false);
 
-        final SslContext sslContext = buildSslContext(config.get("server.ssl.certificateChainFile"), config.get("server.ssl.keyFile"));
+        final SimpleHttpServer.Settings settings = SimpleHttpServer.Settings.fromConfig(config);
+        final SslContext sslContext = buildSslContext(config.get("server.ssl.certificateChainFile"), config.get("server.ssl.keyFile"), settings.http2());
 
         final Path manifestPath = serverModsDir.resolve("servermanifest.json");
-        final List<Path> modRoots = List.of(serverModsDir, clientModsDir);
         final String forgeVersion = arguments.get("mcVersion") + "-" + arguments.get("forgeVersion");
-        serverFileManager = new ServerFileManager(manifestPath, modRoots, forgeVersion);
+        final List<String> mirrors = config.<List<String>>getOptional("server.mirrors").orElse(List.of()).stream()
+                .map(url -> url.endsWith("/") ? url.substring(0, url.length() - 1) : url)
+                .toList();
+        final int deltaHistory = config.getOptionalInt("server.deltaHistory").orElse(DEFAULT_DELTA_HISTORY);
+        final FileHistory fileHistory = deltaHistory > 0 ? FileHistory.load(serverModsDir.resolve(".spl-history"), deltaHistory) : null;
+        final ServerMetrics metrics = new ServerMetrics();
+        checksumCache = ChecksumCache.load(serverModsDir);
+        metadataIndex = ModMetadataIndex.load(serverModsDir);
+        final long hotCacheSizeMb = config.getOptionalLong("server.hotCacheSizeMb").orElse(0);
+        final HotFileCache hotFileCache = hotCacheSizeMb > 0
+                ? new HotFileCache(hotCacheSizeMb * 1024 * 1024, config.getOptionalLong("server.hotCacheMaxFileKb").orElse(DEFAULT_HOT_CACHE_MAX_FILE_KB) * 1024)
+                : null;
+        serverFileManager = new ServerFileManager(manifestPath, forgeVersion, mirrors, checksumCache, metadataIndex, fileHistory, metrics, hotFileCache);
 
-        SimpleHttpServer.run(serverFileManager, port, sslContext);
+        final boolean exposeMetrics = config.<Boolean>getOptional("server.exposeMetrics").orElse(false);
+        SimpleHttpServer.run(serverFileManager, metrics, exposeMetrics, port, sslContext, settings, SimpleHttpServer.TransferLimits.fromConfig(config));
     }
 
     @Nullable
-    private static SslContext buildSslContext(@Nullable final String certificateChainFile, @Nullable final String keyFile) {
+    private static SslContext buildSslContext(@Nullable final String certificateChainFile, @Nullable final String keyFile, final boolean http2) {
         if (certificateChainFile == null || keyFile == null) {
             return null;
         }
@@ -125,7 +247,18 @@ public class ServerSidedPackHandler extends SidedPackHandler {
                 final InputStream certificateChain = Files.newInputStream(Path.of(certificateChainFile));
                 final InputStream key = Files.newInputStream(Path.of(keyFile))
         ) {
-            return SslContextBuilder.forServer(certificateChain, key).build();
+            final SslContextBuilder builder = SslContextBuilder.forServer(certificateChain, key);
+            if (http2) {
+                builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                        .applicationProtocolConfig(new ApplicationProtocolConfig(
+                                ApplicationProtocolConfig.Protocol.ALPN,
+                                ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                ApplicationProtocolNames.HTTP_2,
+                                ApplicationProtocolNames.HTTP_1_1
+                        ));
+            }
+            return builder.build();
         } catch (final Exception e) {
             LOGGER.error("Failed to initialize SSL context for server", e);
         }
@@ -148,4 +281,7 @@ public class ServerSidedPackHandler extends SidedPackHandler {
     public String name() {
         return "serverpacklocator";
     }
+
+    private record ScannedPack(List<IModFile> files, List<ModFileOrException> errors, Map<IModFile, ModMetadataIndex.ModMetadata> metadata) {
+    }
 }
@@ -1,47 +1,53 @@
 package cpw.mods.forge.serverpacklocator.server;
 
+import com.electronwill.nightconfig.core.file.FileConfig;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.ServerSocketChannel;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple Http Server for serving file and manifest requests to clients.
  */
 public class SimpleHttpServer {
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final NioEventLoopGroup PARENT_GROUP = new NioEventLoopGroup(1, new ThreadFactoryBuilder()
-            .setNameFormat("ServerPack Locator Parent - %d")
-            .setDaemon(true)
-            .build());
-    private static final NioEventLoopGroup CHILD_GROUP = new NioEventLoopGroup(1, new ThreadFactoryBuilder()
-            .setNameFormat("ServerPack Locator Child - %d")
-            .setDaemon(true)
-            .build());
 
-    private static final int MAX_CONTENT_LENGTH = 2 << 19;
+    static final long TRAFFIC_CHECK_INTERVAL_MILLIS = 1000;
+    private static final int FILE_QUEUE_PER_THREAD = 64;
+    private static final long FILE_THREAD_KEEP_ALIVE_SECONDS = 60;
 
     private SimpleHttpServer() {
         throw new IllegalArgumentException("Can not instantiate SimpleHttpServer.");
     }
 
-    public static void run(final ServerFileManager fileManager, final int port, @Nullable final SslContext sslContext) {
+    public static void run(final ServerFileManager fileManager, final ServerMetrics metrics, final boolean exposeMetrics, final int port, @Nullable final SslContext sslContext, final Settings settings, final TransferLimits limits) {
+        final boolean useEpoll = settings.nativeTransport() && isEpollAvailable();
+        final EventLoopGroup parentGroup = createGroup(useEpoll, 1, "ServerPack Locator Parent - %d");
+        final EventLoopGroup childGroup = createGroup(useEpoll, settings.ioThreads(), "ServerPack Locator Child - %d");
+        final Executor fileExecutor = createFileExecutor(settings.fileThreads());
+        LOGGER.info("Using {} transport with {} I/O threads and {} file threads", useEpoll ? "epoll" : "NIO", settings.ioThreads(), settings.fileThreads());
+
+        final GlobalTrafficShapingHandler globalShaping = limits.bandwidth() > 0 ? new GlobalTrafficShapingHandler(childGroup, limits.bandwidth(), 0, TRAFFIC_CHECK_INTERVAL_MILLIS) : null;
+
         final ServerBootstrap bootstrap = new ServerBootstrap()
-                .group(PARENT_GROUP, CHILD_GROUP)
-                .channel(NioServerSocketChannel.class)
+                .group(parentGroup, childGroup)
+                .channel(useEpoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
                 .handler(new ChannelInitializer<ServerSocketChannel>() {
                     @Override
                     protected void initChannel(final ServerSocketChannel channel) {
@@ -53,19 +59,84 @@ public class SimpleHttpServer {
                         });
                     }
                 })
-                .childHandler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(final SocketChannel channel) {
-                        if (sslContext != null) {
-                            channel.pipeline().addLast("ssl", sslContext.newHandler(channel.alloc()));
-                        }
-                        channel.pipeline().addLast("codec", new HttpServerCodec());
-                        channel.pipeline().addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
-                        channel.pipeline().addLast("request", new RequestHandler(fileManager));
-                    }
-                })
-                .option(ChannelOption.SO_BACKLOG, 128)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                .childHandler(new HttpChannelInitializer(fileManager, metrics, exposeMetrics, sslContext, settings.h2c(), limits, globalShaping, fileExecutor))
+                .option(ChannelOption.SO_BACKLOG, settings.backlog())
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, settings.tcpNoDelay())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(settings.writeBufferLowWaterMark(), settings.writeBufferHighWaterMark()));
         bootstrap.bind(port).syncUninterruptibly();
     }
+
+    private static EventLoopGroup createGroup(final boolean useEpoll, final int threads, final String nameFormat) {
+        final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat(nameFormat)
+                .setDaemon(true)
+                .build();
+        return useEpoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    /**
+     * Opening a file can block for as long as the disk takes, so it happens on these threads instead of the event
+     * loops. The queue is bounded, so that a stalled disk turns clients away rather than piling up their requests.
+     */
+    private static Executor createFileExecutor(final int threads) {
+        final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("ServerPack Locator Files - %d")
+                .setDaemon(true)
+                .build();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, FILE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * FILE_QUEUE_PER_THREAD), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (LinkageError e) {
+            // The native transport classes are not on every classpath
+            return false;
+        }
+    }
+
+    /**
+     * Limits on how much of the server's uplink pack downloads may use, read from the {@code server} section of the
+     * config. Bandwidths are in bytes per second, and 0 means unlimited.
+     */
+    public record TransferLimits(long bandwidth, long clientBandwidth, int maxConcurrentTransfers) {
+        public static TransferLimits fromConfig(final FileConfig config) {
+            return new TransferLimits(
+                    Math.max(0, config.getOptionalLong("server.maxBandwidthKb").orElse(0)) * 1024,
+                    Math.max(0, config.getOptionalLong("server.maxClientBandwidthKb").orElse(0)) * 1024,
+                    Math.max(0, config.getOptionalInt("server.maxConcurrentTransfers").orElse(0))
+            );
+        }
+    }
+
+    /**
+     * Network tuning options, read from the {@code server.network} section of the config.
+     */
+    public record Settings(int ioThreads, int fileThreads, boolean nativeTransport, int backlog, boolean tcpNoDelay, int writeBufferLowWaterMark, int writeBufferHighWaterMark, boolean http2, boolean h2c) {
+        private static final int DEFAULT_IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        private static final int DEFAULT_FILE_THREADS = 4;
+        private static final int DEFAULT_BACKLOG = 128;
+        private static final int DEFAULT_WRITE_BUFFER_LOW_KB = 256;
+        private static final int DEFAULT_WRITE_BUFFER_HIGH_KB = 1024;
+
+        public static Settings fromConfig(final FileConfig config) {
+            final int lowWaterMarkKb = config.getOptionalInt("server.network.writeBufferLowKb").orElse(DEFAULT_WRITE_BUFFER_LOW_KB);
+            final int highWaterMarkKb = config.getOptionalInt("server.network.writeBufferHighKb").orElse(DEFAULT_WRITE_BUFFER_HIGH_KB);
+            return new Settings(
+                    Math.max(1, config.getOptionalInt("server.network.ioThreads").orElse(DEFAULT_IO_THREADS)),
+                    Math.max(1, config.getOptionalInt("server.network.fileThreads").orElse(DEFAULT_FILE_THREADS)),
+                    config.<Boolean>getOptional("server.network.nativeTransport").orElse(true),
+                    config.getOptionalInt("server.network.backlog").orElse(DEFAULT_BACKLOG),
+                    config.<Boolean>getOptional("server.network.tcpNoDelay").orElse(true),
+                    lowWaterMarkKb * 1024,
+                    Math.max(lowWaterMarkKb, highWaterMarkKb) * 1024,
+                    config.<Boolean>getOptional("server.network.http2").orElse(true),
+                    config.<Boolean>getOptional("server.network.h2c").orElse(false)
+            );
+        }
+    }
 }
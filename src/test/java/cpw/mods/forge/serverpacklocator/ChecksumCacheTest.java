@@ -0,0 +1,143 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChecksumCacheTest {
+    // Recorded in place of the real checksum, so that we can tell whether the cache was consulted
+    private static final HashCode RECORDED = Hashing.sha256().hashString("recorded", StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void unchangedFileUsesCachedChecksum() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        final ChecksumCache cache = ChecksumCache.load(dir);
+        cache.put(file, RECORDED);
+        assertEquals(RECORDED, cache.computeChecksumFor(file));
+    }
+
+    @Test
+    public void sizeChangeInvalidatesEntry() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        final FileTime modified = Files.getLastModifiedTime(file);
+        final ChecksumCache cache = ChecksumCache.load(dir);
+        cache.put(file, RECORDED);
+
+        write("mod.jar", "longer contents");
+        Files.setLastModifiedTime(file, modified);
+        assertEquals(sha256("longer contents"), cache.computeChecksumFor(file));
+    }
+
+    @Test
+    public void modificationTimeChangeInvalidatesEntry() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        final ChecksumCache cache = ChecksumCache.load(dir);
+        cache.put(file, RECORDED);
+
+        // Same size, so only the modification time gives the change away
+        write("mod.jar", "CONTENTS");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+        assertEquals(sha256("CONTENTS"), cache.computeChecksumFor(file));
+    }
+
+    @Test
+    public void entriesSurviveSaveAndLoad() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        final ChecksumCache cache = ChecksumCache.load(dir);
+        cache.put(file, RECORDED);
+        cache.save();
+
+        assertEquals(RECORDED, ChecksumCache.load(dir).computeChecksumFor(file));
+    }
+
+    @Test
+    public void deletedFilesAreDroppedOnSave() throws IOException {
+        final Path kept = write("kept.jar", "kept");
+        final Path deleted = write("deleted.jar", "deleted");
+        final ChecksumCache cache = ChecksumCache.load(dir);
+        cache.put(kept, RECORDED);
+        cache.put(deleted, RECORDED);
+        Files.delete(deleted);
+        cache.save();
+
+        final String saved = Files.readString(dir.resolve(ChecksumCache.FILE_NAME));
+        assertTrue(saved.contains("kept.jar"));
+        assertFalse(saved.contains("deleted.jar"));
+    }
+
+    @Test
+    public void outdatedCacheIsDiscarded() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        Files.writeString(dir.resolve(ChecksumCache.FILE_NAME), "{\"version\":1,\"entries\":[{\"path\":" + quote(file.toAbsolutePath().toString())
+                + ",\"size\":8,\"lastModified\":" + Files.getLastModifiedTime(file).toMillis() + ",\"fileKey\":\"\",\"checksum\":\"" + RECORDED + "\"}]}");
+
+        assertEquals(sha256("contents"), ChecksumCache.load(dir).computeChecksumFor(file));
+    }
+
+    @Test
+    public void malformedCacheIsDiscarded() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        Files.writeString(dir.resolve(ChecksumCache.FILE_NAME), "not json {");
+
+        assertEquals(sha256("contents"), ChecksumCache.load(dir).computeChecksumFor(file));
+    }
+
+    @Test
+    public void legacyChecksumIsKeptUntilFileChanges() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        Files.writeString(dir.resolve(ChecksumCache.FILE_NAME), "{\"version\":2,\"entries\":[{\"path\":" + quote(file.toAbsolutePath().toString())
+                + ",\"size\":8,\"lastModified\":" + Files.getLastModifiedTime(file).toMillis() + ",\"fileKey\":" + quote(fileKey(file))
+                + ",\"checksum\":\"" + sha256("contents") + "\",\"legacyChecksum\":\"" + RECORDED + "\"}]}");
+        final ChecksumCache cache = ChecksumCache.load(dir);
+        assertEquals(RECORDED, cache.computeLegacyChecksumFor(file));
+
+        write("mod.jar", "longer contents");
+        assertEquals(FileChecksumValidator.computeLegacyChecksumFor(file), cache.computeLegacyChecksumFor(file));
+    }
+
+    @Test
+    public void legacyChecksumSurvivesSaveAndLoad() throws IOException {
+        final Path file = write("mod.jar", "contents");
+        final ChecksumCache cache = ChecksumCache.load(dir);
+        final HashCode legacy = cache.computeLegacyChecksumFor(file);
+        cache.save();
+
+        assertEquals(FileChecksumValidator.computeLegacyChecksumFor(file), legacy);
+        assertTrue(Files.readString(dir.resolve(ChecksumCache.FILE_NAME)).contains("\"legacyChecksum\":\"" + legacy + "\""));
+    }
+
+    @Test
+    public void missingFileHasNoChecksum() {
+        assertNull(ChecksumCache.load(dir).computeChecksumFor(dir.resolve("missing.jar")));
+    }
+
+    private Path write(final String name, final String contents) throws IOException {
+        return Files.writeString(dir.resolve(name), contents);
+    }
+
+    private static HashCode sha256(final String contents) {
+        return Hashing.sha256().hashString(contents, StandardCharsets.UTF_8);
+    }
+
+    private static String fileKey(final Path file) throws IOException {
+        return Objects.toString(Files.readAttributes(file, BasicFileAttributes.class).fileKey(), "");
+    }
+
+    private static String quote(final String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
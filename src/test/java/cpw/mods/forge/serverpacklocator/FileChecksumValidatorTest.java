@@ -0,0 +1,86 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileChecksumValidatorTest {
+    // Either side of the 1 KB legacy buffer and the 1 MB read buffer
+    private static final int[] SIZES = {0, 1, 1023, 1024, 1025, 1024 * 1024 - 1, 1024 * 1024, 1024 * 1024 + 1, 3 * 1024 * 1024 + 17};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void checksumIsPlainSha256() throws IOException {
+        for (final int size : SIZES) {
+            final byte[] contents = randomBytes(size);
+            final Path file = write("file-" + size, contents);
+            assertEquals(Hashing.sha256().hashBytes(contents), FileChecksumValidator.computeChecksumFor(file), "size " + size);
+        }
+    }
+
+    @Test
+    public void legacyChecksumHashesWholeBuffers() throws IOException {
+        for (final int size : SIZES) {
+            final byte[] contents = randomBytes(size);
+            final Path file = write("file-" + size, contents);
+            assertEquals(Hashing.sha256().newHasher().putBytes(legacyPadded(contents)).hash(), FileChecksumValidator.computeLegacyChecksumFor(file), "size " + size);
+        }
+    }
+
+    @Test
+    public void legacyChecksumDiffersFromSha256ForPartialBuffers() throws IOException {
+        final Path file = write("file", randomBytes(1500));
+        assertNotEquals(FileChecksumValidator.computeChecksumFor(file), FileChecksumValidator.computeLegacyChecksumFor(file));
+    }
+
+    @Test
+    public void missingFileHasNoChecksum() {
+        assertNull(FileChecksumValidator.computeChecksumFor(dir.resolve("missing")));
+        assertNull(FileChecksumValidator.computeLegacyChecksumFor(dir.resolve("missing")));
+    }
+
+    @Test
+    public void checksumsManyFilesInParallel() throws IOException {
+        final Path first = write("first", randomBytes(10));
+        final Path second = write("second", randomBytes(20_000));
+        final Map<Path, ?> checksums = FileChecksumValidator.computeChecksumsFor(List.of(first, second, dir.resolve("missing")), FileChecksumValidator::computeChecksumFor);
+        assertEquals(Map.of(first, FileChecksumValidator.computeChecksumFor(first), second, FileChecksumValidator.computeChecksumFor(second)), checksums);
+    }
+
+    /**
+     * The bytes the legacy digest covers: each 1 KB block in full, with a short final block padded out by the tail
+     * of the block before it.
+     */
+    private static byte[] legacyPadded(final byte[] contents) {
+        final int blocks = (contents.length + 1023) / 1024;
+        final byte[] padded = new byte[blocks * 1024];
+        final byte[] buffer = new byte[1024];
+        for (int block = 0; block < blocks; block++) {
+            final int offset = block * 1024;
+            System.arraycopy(contents, offset, buffer, 0, Math.min(1024, contents.length - offset));
+            System.arraycopy(buffer, 0, padded, offset, 1024);
+        }
+        return padded;
+    }
+
+    private Path write(final String name, final byte[] contents) throws IOException {
+        return Files.write(dir.resolve(name), contents);
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,91 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import net.minecraftforge.forgespi.locating.IModFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ModMetadataIndexTest {
+    private static final HashCode CHECKSUM = Hashing.sha256().hashString("example", StandardCharsets.UTF_8);
+    private static final HashCode OTHER_CHECKSUM = Hashing.sha256().hashString("other", StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void describesNonModFilesByName() {
+        final ModMetadataIndex index = ModMetadataIndex.load(dir);
+        assertEquals(new ModMetadataIndex.ModMetadata("library.jar", "", IModFile.Type.LIBRARY), index.get(modFile("library.jar", IModFile.Type.LIBRARY), CHECKSUM));
+    }
+
+    @Test
+    public void knownModsAreNotParsedAgain() throws IOException {
+        writeIndex(1, CHECKSUM, "example", "1.2.3", IModFile.Type.MOD);
+        // The fake mod file fails if its mod list is read, so this only passes if the index answers
+        final ModMetadataIndex.ModMetadata metadata = ModMetadataIndex.load(dir).get(modFile("example-1.2.3.jar", IModFile.Type.MOD), CHECKSUM);
+        assertEquals(new ModMetadataIndex.ModMetadata("example", "1.2.3", IModFile.Type.MOD), metadata);
+    }
+
+    @Test
+    public void typeChangeReadsFileAgain() throws IOException {
+        writeIndex(1, CHECKSUM, "example", "1.2.3", IModFile.Type.MOD);
+        final ModMetadataIndex.ModMetadata metadata = ModMetadataIndex.load(dir).get(modFile("example-1.2.3.jar", IModFile.Type.GAMELIBRARY), CHECKSUM);
+        assertEquals(new ModMetadataIndex.ModMetadata("example-1.2.3.jar", "", IModFile.Type.GAMELIBRARY), metadata);
+    }
+
+    @Test
+    public void outdatedIndexIsDiscarded() throws IOException {
+        writeIndex(0, CHECKSUM, "example", "1.2.3", IModFile.Type.LIBRARY);
+        final ModMetadataIndex.ModMetadata metadata = ModMetadataIndex.load(dir).get(modFile("library.jar", IModFile.Type.LIBRARY), CHECKSUM);
+        assertEquals("library.jar", metadata.rootModId());
+    }
+
+    @Test
+    public void savesOnlyEntriesUsedSinceLoading() throws IOException {
+        final ModMetadataIndex index = ModMetadataIndex.load(dir);
+        index.get(modFile("first.jar", IModFile.Type.LIBRARY), CHECKSUM);
+        index.get(modFile("second.jar", IModFile.Type.LIBRARY), OTHER_CHECKSUM);
+        index.save();
+
+        final ModMetadataIndex reloaded = ModMetadataIndex.load(dir);
+        // Renamed, but the same contents, so the stored entry is used
+        assertEquals("first.jar", reloaded.get(modFile("renamed.jar", IModFile.Type.LIBRARY), CHECKSUM).rootModId());
+        reloaded.save();
+
+        final String saved = Files.readString(dir.resolve(ModMetadataIndex.FILE_NAME));
+        assertTrue(saved.contains(CHECKSUM.toString()));
+        assertFalse(saved.contains(OTHER_CHECKSUM.toString()));
+    }
+
+    @Test
+    public void filesWithoutChecksumAreNotRemembered() throws IOException {
+        final ModMetadataIndex index = ModMetadataIndex.load(dir);
+        assertEquals("library.jar", index.get(modFile("library.jar", IModFile.Type.LIBRARY), null).rootModId());
+        index.save();
+        assertFalse(Files.exists(dir.resolve(ModMetadataIndex.FILE_NAME)));
+    }
+
+    private void writeIndex(final int version, final HashCode checksum, final String rootModId, final String modVersion, final IModFile.Type type) throws IOException {
+        Files.writeString(dir.resolve(ModMetadataIndex.FILE_NAME), """
+                {"version": %d, "entries": [{"checksum": "%s", "rootModId": "%s", "version": "%s", "type": "%s"}]}
+                """.formatted(version, checksum, rootModId, modVersion, type.name()));
+    }
+
+    private static IModFile modFile(final String fileName, final IModFile.Type type) {
+        return (IModFile) Proxy.newProxyInstance(IModFile.class.getClassLoader(), new Class<?>[]{IModFile.class}, (proxy, method, args) -> switch (method.getName()) {
+            case "getFileName" -> fileName;
+            case "getType" -> type;
+            case "toString" -> fileName;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+    }
+}
@@ -0,0 +1,112 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerManifestTest {
+    private static final HashCode CHECKSUM = Hashing.sha256().hashString("mod", StandardCharsets.UTF_8);
+
+    @Test
+    public void parsesManifestWithoutFeatures() {
+        final ServerManifest manifest = ServerManifest.parse("""
+                {
+                  "forgeVersion": "1.19.2-43.1.1",
+                  "files": [{"rootModId": "example", "checksum": "%s", "fileName": "example.jar"}]
+                }
+                """.formatted(CHECKSUM.toString().toUpperCase())).result().orElseThrow();
+
+        assertEquals("1.19.2-43.1.1", manifest.forgeVersion());
+        assertEquals(List.of(new ServerManifest.ModFileData("example", CHECKSUM, "example.jar")), manifest.files());
+        assertEquals(List.of(), manifest.features());
+        assertFalse(manifest.hasFeature(ServerManifest.FEATURE_BLOBS));
+        assertTrue(manifest.usesLegacyChecksums());
+    }
+
+    @Test
+    public void roundTripsFeatures() {
+        final ServerManifest manifest = new ServerManifest.Builder()
+                .setForgeVersion("1.19.2-43.1.1")
+                .addFeature(ServerManifest.FEATURE_SHA256)
+                .addFeature(ServerManifest.FEATURE_BLOBS)
+                .add("example", CHECKSUM, "example.jar")
+                .build();
+
+        final ServerManifest parsed = ServerManifest.parse(manifest.toJson()).result().orElseThrow();
+        assertEquals(manifest, parsed);
+        assertTrue(parsed.hasFeature(ServerManifest.FEATURE_BLOBS));
+        assertFalse(parsed.hasFeature(ServerManifest.FEATURE_DELTAS));
+        assertFalse(parsed.usesLegacyChecksums());
+    }
+
+    @Test
+    public void legacyChecksumStaysInChecksumField() {
+        final HashCode legacy = Hashing.sha256().hashString("legacy", StandardCharsets.UTF_8);
+        final ServerManifest manifest = new ServerManifest.Builder()
+                .setForgeVersion("1.19.2-43.1.1")
+                .addFeature(ServerManifest.FEATURE_SHA256)
+                .add("example", CHECKSUM, "example.jar", legacy)
+                .build();
+
+        // Older clients only read "checksum", so it must keep the digest they compute
+        final JsonObject file = JsonParser.parseString(manifest.toJson()).getAsJsonObject().getAsJsonArray("files").get(0).getAsJsonObject();
+        assertEquals(legacy.toString().toUpperCase(Locale.ROOT), file.get("checksum").getAsString());
+        assertEquals(CHECKSUM.toString().toUpperCase(Locale.ROOT), file.get("sha256").getAsString());
+
+        final ServerManifest.ModFileData parsed = ServerManifest.parse(manifest.toJson()).result().orElseThrow().files().get(0);
+        assertEquals(CHECKSUM, parsed.checksum());
+        assertEquals(legacy, parsed.legacyChecksum());
+    }
+
+    @Test
+    public void ignoresUnknownFeatures() {
+        final ServerManifest manifest = ServerManifest.parse("""
+                {"forgeVersion": "1.19.2-43.1.1", "files": [], "features": ["sha256", "from-the-future"]}
+                """).result().orElseThrow();
+
+        assertTrue(manifest.hasFeature("from-the-future"));
+        assertFalse(manifest.usesLegacyChecksums());
+    }
+
+    @Test
+    public void roundTripsMirrors() {
+        final ServerManifest manifest = new ServerManifest.Builder()
+                .setForgeVersion("1.19.2-43.1.1")
+                .addFeature(ServerManifest.FEATURE_SHA256)
+                .addMirror("https://cdn.example.com/pack")
+                .addMirror("https://backup.example.com/pack")
+                .add("example", CHECKSUM, "example.jar")
+                .build();
+
+        final ServerManifest parsed = ServerManifest.parse(manifest.toJson()).result().orElseThrow();
+        assertEquals(manifest, parsed);
+        assertEquals(List.of("https://cdn.example.com/pack", "https://backup.example.com/pack"), parsed.mirrors());
+    }
+
+    @Test
+    public void mirrorsAreOptional() {
+        final ServerManifest manifest = new ServerManifest.Builder()
+                .setForgeVersion("1.19.2-43.1.1")
+                .add("example", CHECKSUM, "example.jar")
+                .build();
+
+        // Older clients never see the field when there is nothing in it
+        assertFalse(manifest.toJson().contains("mirrors"));
+        assertEquals(List.of(), ServerManifest.parse(manifest.toJson()).result().orElseThrow().mirrors());
+    }
+
+    @Test
+    public void rejectsInvalidChecksum() {
+        assertTrue(ServerManifest.parse("""
+                {"forgeVersion": "1.19.2-43.1.1", "files": [{"rootModId": "example", "checksum": "not hex", "fileName": "example.jar"}]}
+                """).result().isEmpty());
+    }
+}
@@ -0,0 +1,115 @@
+package cpw.mods.forge.serverpacklocator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZipDeltaTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void rebuildsChangedZip() throws IOException {
+        final byte[] unchanged = randomBytes(256 * 1024, 1);
+        final Path oldFile = zip("old.jar", Map.of("a/Unchanged.class", unchanged, "b/Changed.class", randomBytes(1000, 2)));
+        final Path newFile = zip("new.jar", Map.of("a/Unchanged.class", unchanged, "b/Changed.class", randomBytes(1000, 3), "c/Added.class", randomBytes(500, 4)));
+        final Path delta = dir.resolve("delta");
+
+        assertTrue(ZipDelta.compute(oldFile, newFile, delta));
+        // The unchanged entry is copied from the old file rather than sent
+        assertTrue(Files.size(delta) < Files.size(newFile) - unchanged.length / 2, "delta of " + Files.size(delta) + " bytes");
+        assertArrayEquals(Files.readAllBytes(newFile), applied(oldFile, delta));
+    }
+
+    @Test
+    public void rebuildsZipWithNothingInCommon() throws IOException {
+        final Path oldFile = zip("old.jar", Map.of("Old.class", randomBytes(1000, 1)));
+        final Path newFile = zip("new.jar", Map.of("New.class", randomBytes(1000, 2)));
+        final Path delta = dir.resolve("delta");
+
+        assertTrue(ZipDelta.compute(oldFile, newFile, delta));
+        assertArrayEquals(Files.readAllBytes(newFile), applied(oldFile, delta));
+    }
+
+    @Test
+    public void rebuildsIdenticalZip() throws IOException {
+        final Path oldFile = zip("old.jar", Map.of("Same.class", randomBytes(10_000, 1)));
+        final Path newFile = Files.copy(oldFile, dir.resolve("new.jar"));
+        final Path delta = dir.resolve("delta");
+
+        assertTrue(ZipDelta.compute(oldFile, newFile, delta));
+        assertArrayEquals(Files.readAllBytes(newFile), applied(oldFile, delta));
+    }
+
+    @Test
+    public void refusesFilesWhichAreNotZips() throws IOException {
+        final Path oldFile = zip("old.jar", Map.of("Old.class", randomBytes(1000, 1)));
+        final Path notZip = Files.write(dir.resolve("new.jar"), randomBytes(1000, 2));
+        final Path delta = dir.resolve("delta");
+
+        assertFalse(ZipDelta.compute(oldFile, notZip, delta));
+        assertFalse(ZipDelta.compute(notZip, oldFile, delta));
+        assertFalse(Files.exists(delta));
+    }
+
+    @Test
+    public void rejectsUnknownDeltaFormat() throws IOException {
+        final Path oldFile = zip("old.jar", Map.of("Old.class", randomBytes(1000, 1)));
+        final InputStream delta = new ByteArrayInputStream("not a delta file".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IOException.class, () -> ZipDelta.apply(oldFile, delta, dir.resolve("out.jar")));
+    }
+
+    @Test
+    public void rejectsTruncatedDelta() throws IOException {
+        final Path oldFile = zip("old.jar", Map.of("Old.class", randomBytes(1000, 1)));
+        final Path newFile = zip("new.jar", Map.of("New.class", randomBytes(1000, 2)));
+        final Path delta = dir.resolve("delta");
+        assertTrue(ZipDelta.compute(oldFile, newFile, delta));
+        final byte[] bytes = Files.readAllBytes(delta);
+
+        assertThrows(IOException.class, () -> ZipDelta.apply(oldFile, new ByteArrayInputStream(bytes, 0, bytes.length / 2), dir.resolve("out.jar")));
+    }
+
+    private byte[] applied(final Path oldFile, final Path delta) throws IOException {
+        final Path output = dir.resolve("applied.jar");
+        try (InputStream input = Files.newInputStream(delta)) {
+            ZipDelta.apply(oldFile, input, output);
+        }
+        return Files.readAllBytes(output);
+    }
+
+    private Path zip(final String name, final Map<String, byte[]> entries) throws IOException {
+        final Path file = dir.resolve(name);
+        try (OutputStream output = Files.newOutputStream(file);
+             ZipOutputStream zip = new ZipOutputStream(output)) {
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                final ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(0);
+                zip.putNextEntry(zipEntry);
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,170 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MirrorsTest {
+    private static final HashCode CHECKSUM = Hashing.sha256().hashString("mod", StandardCharsets.UTF_8);
+    private static final ServerManifest.ModFileData MOD_FILE = new ServerManifest.ModFileData("example", CHECKSUM, "example.jar");
+    private static final long MB = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void addIgnoresTrailingSlash() {
+        final Mirrors mirrors = new Mirrors(List.of("https://a.example.com/pack/"));
+        final Mirrors.Mirror mirror = mirrors.add("https://a.example.com/pack");
+
+        assertEquals(List.of(mirror), mirrors.ranked());
+        assertEquals(URI.create("https://a.example.com/pack/" + CHECKSUM), mirror.fileUri(CHECKSUM));
+    }
+
+    @Test
+    public void unmeasuredMirrorsAreTriedFirst() {
+        final Mirrors mirrors = new Mirrors(List.of());
+        final Mirrors.Mirror measured = mirrors.add("https://a.example.com");
+        final Mirrors.Mirror unmeasured = mirrors.add("https://b.example.com");
+        download(measured, MB, 1000);
+
+        assertEquals(List.of(unmeasured, measured), mirrors.ranked());
+    }
+
+    @Test
+    public void fasterMirrorsRankFirst() {
+        final Mirrors mirrors = new Mirrors(List.of());
+        final Mirrors.Mirror slow = mirrors.add("https://a.example.com");
+        final Mirrors.Mirror fast = mirrors.add("https://b.example.com");
+        download(slow, MB, 1000);
+        download(fast, MB, 100);
+
+        assertEquals(List.of(fast, slow), mirrors.ranked());
+    }
+
+    @Test
+    public void busyMirrorsRankLower() {
+        final Mirrors mirrors = new Mirrors(List.of());
+        final Mirrors.Mirror busy = mirrors.add("https://a.example.com");
+        final Mirrors.Mirror idle = mirrors.add("https://b.example.com");
+        busy.started();
+
+        assertEquals(List.of(idle, busy), mirrors.ranked());
+    }
+
+    @Test
+    public void failingMirrorsRankLastAndAreDropped() {
+        final Mirrors mirrors = new Mirrors(List.of());
+        final Mirrors.Mirror failing = mirrors.add("https://a.example.com");
+        final Mirrors.Mirror slow = mirrors.add("https://b.example.com");
+        download(failing, MB, 100);
+        download(slow, MB, 1000);
+
+        failDownload(failing);
+        assertEquals(List.of(slow, failing), mirrors.ranked());
+        failDownload(failing);
+        failDownload(failing);
+        assertEquals(List.of(slow), mirrors.ranked());
+
+        // A single success is enough to bring it back
+        download(failing, MB, 100);
+        assertEquals(List.of(failing, slow), mirrors.ranked());
+    }
+
+    @Test
+    public void hedgeDelayFollowsMeasuredThroughput() {
+        final Mirrors.Mirror mirror = new Mirrors(List.of()).add("https://a.example.com");
+        final long unmeasured = mirror.hedgeDelayMillis(MB);
+
+        download(mirror, MB, 1000);
+        // Three times as long as 10MB should take at 1MB/s
+        assertEquals(30_000, mirror.hedgeDelayMillis(10 * MB));
+        assertEquals(unmeasured, mirror.hedgeDelayMillis(-1));
+    }
+
+    @Test
+    public void raceFallsBackToNextMirror() {
+        final Mirrors mirrors = new Mirrors(List.of("https://a.example.com", "https://b.example.com"));
+        final List<URI> requested = new ArrayList<>();
+        final Mirrors.Race race = new TestRace(mirrors.ranked()) {
+            @Override
+            protected CompletableFuture<HttpResponse<HashCode>> send(final URI uri, final Path partPath, final LongConsumer onResponse) {
+                requested.add(uri);
+                if (uri.getHost().equals("a.example.com")) {
+                    return CompletableFuture.failedFuture(new IOException("Connection refused"));
+                }
+                onResponse.accept(-1);
+                return CompletableFuture.completedFuture(response());
+            }
+        };
+
+        race.start().orTimeout(5, TimeUnit.SECONDS).join();
+        assertEquals(List.of(URI.create("https://a.example.com/" + CHECKSUM), URI.create("https://b.example.com/" + CHECKSUM)), requested);
+        assertEquals(List.of(mirrors.add("https://b.example.com"), mirrors.add("https://a.example.com")), mirrors.ranked());
+    }
+
+    @Test
+    public void raceFailsOnceEveryMirrorHasFailed() {
+        final Mirrors mirrors = new Mirrors(List.of("https://a.example.com", "https://b.example.com"));
+        final List<URI> requested = new ArrayList<>();
+        final Mirrors.Race race = new TestRace(mirrors.ranked()) {
+            @Override
+            protected CompletableFuture<HttpResponse<HashCode>> send(final URI uri, final Path partPath, final LongConsumer onResponse) {
+                requested.add(uri);
+                return CompletableFuture.failedFuture(new IOException("Connection refused"));
+            }
+        };
+
+        final CompletionException e = assertThrows(CompletionException.class, () -> race.start().orTimeout(5, TimeUnit.SECONDS).join());
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(2, requested.size());
+    }
+
+    private static void download(final Mirrors.Mirror mirror, final long bytes, final long millis) {
+        mirror.started();
+        mirror.succeeded(bytes, TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static void failDownload(final Mirrors.Mirror mirror) {
+        mirror.started();
+        mirror.failed();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HttpResponse<HashCode> response() {
+        return (HttpResponse<HashCode>) Proxy.newProxyInstance(HttpResponse.class.getClassLoader(), new Class<?>[]{HttpResponse.class}, (proxy, method, args) -> switch (method.getName()) {
+            case "statusCode" -> 200;
+            case "body" -> CHECKSUM;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private abstract class TestRace extends Mirrors.Race {
+        TestRace(final List<Mirrors.Mirror> candidates) {
+            super(MOD_FILE, candidates, dir.resolve("example.jar.part"), dir.resolve("example.jar.race.part"), dir.resolve("example.jar"));
+        }
+
+        @Override
+        protected CompletableFuture<Void> complete(final HttpResponse<HashCode> response, final Path partPath) {
+            assertEquals(200, response.statusCode());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
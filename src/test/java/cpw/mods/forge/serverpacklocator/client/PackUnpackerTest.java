@@ -0,0 +1,105 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import cpw.mods.forge.serverpacklocator.server.TestPacks;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackUnpackerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void unpacksEveryFileTheServerPacked() throws Exception {
+        final Map<String, byte[]> contents = new HashMap<>();
+        contents.put("empty.jar", new byte[0]);
+        contents.put("block.jar", randomBytes(512));
+        contents.put("small.jar", randomBytes(1000));
+        // Larger than a single chunk of the archive
+        contents.put("large.jar", randomBytes(200_000));
+        // Too long for a plain ustar header, so it is sent with a PAX header
+        contents.put("a-mod-with-a-very-long-file-name-which-does-not-fit-into-the-hundred-bytes-of-a-ustar-header-1.0.jar", randomBytes(700));
+        final byte[] archive = TestPacks.packArchive(Files.createDirectories(dir.resolve("server")), write(contents));
+
+        final Map<String, ServerManifest.ModFileData> expected = new HashMap<>();
+        contents.forEach((name, bytes) -> expected.put(name, new ServerManifest.ModFileData(name, sha256(bytes), name)));
+        final Map<String, HashCode> unpacked = unpack(archive, expected);
+
+        assertEquals(contents.keySet(), unpacked.keySet());
+        contents.forEach((name, bytes) -> {
+            assertEquals(sha256(bytes), unpacked.get(name), name);
+            assertArrayEquals(bytes, readPart(name), name);
+        });
+    }
+
+    @Test
+    public void skipsFilesWhichWereNotExpected() throws Exception {
+        final Map<String, byte[]> contents = Map.of("wanted.jar", randomBytes(1500), "unwanted.jar", randomBytes(2500));
+        final byte[] archive = TestPacks.packArchive(Files.createDirectories(dir.resolve("server")), write(contents));
+
+        final byte[] wanted = contents.get("wanted.jar");
+        final Map<String, HashCode> unpacked = unpack(archive, Map.of("wanted.jar", new ServerManifest.ModFileData("wanted", sha256(wanted), "wanted.jar")));
+
+        assertEquals(Map.of("wanted.jar", sha256(wanted)), unpacked);
+        assertFalse(Files.exists(dir.resolve("parts").resolve("unwanted.jar")));
+    }
+
+    @Test
+    public void rejectsTruncatedArchive() throws Exception {
+        final Map<String, byte[]> contents = Map.of("mod.jar", randomBytes(5000));
+        final byte[] archive = TestPacks.packArchive(Files.createDirectories(dir.resolve("server")), write(contents));
+        final byte[] truncated = Arrays.copyOf(archive, 3000);
+
+        assertThrows(EOFException.class, () -> unpack(truncated, Map.of("mod.jar", new ServerManifest.ModFileData("mod", sha256(contents.get("mod.jar")), "mod.jar"))));
+    }
+
+    private Map<String, HashCode> unpack(final byte[] archive, final Map<String, ServerManifest.ModFileData> expected) throws IOException {
+        final Path parts = Files.createDirectories(dir.resolve("parts"));
+        final Map<String, HashCode> unpacked = new HashMap<>();
+        new PackUnpacker(expected, modFile -> parts.resolve(modFile.fileName()), (modFile, partPath, checksum) -> unpacked.put(modFile.fileName(), checksum))
+                .unpack(new ByteArrayInputStream(archive));
+        return unpacked;
+    }
+
+    private byte[] readPart(final String name) {
+        try {
+            return Files.readAllBytes(dir.resolve("parts").resolve(name));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private Path[] write(final Map<String, byte[]> contents) throws IOException {
+        final Path mods = Files.createDirectories(dir.resolve("mods"));
+        final Path[] files = new Path[contents.size()];
+        int i = 0;
+        for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            files[i++] = Files.write(mods.resolve(entry.getKey()), entry.getValue());
+        }
+        return files;
+    }
+
+    private static HashCode sha256(final byte[] bytes) {
+        return Hashing.sha256().hashBytes(bytes);
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,101 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerServerTest {
+    private static final String CONTENTS = "mod contents";
+    private static final HashCode CHECKSUM = Hashing.sha256().hashString(CONTENTS, StandardCharsets.UTF_8);
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void servesPublishedBlob() throws Exception {
+        final PeerServer server = start(1);
+
+        final HttpResponse<String> response = send(server, "GET", "/blobs/" + CHECKSUM);
+        assertEquals(200, response.statusCode());
+        assertEquals(CONTENTS, response.body());
+    }
+
+    @Test
+    public void servesChecksumInAnyCase() throws Exception {
+        final PeerServer server = start(1);
+
+        assertEquals(200, send(server, "GET", "/blobs/" + CHECKSUM.toString().toUpperCase()).statusCode());
+    }
+
+    @Test
+    public void servesUploadsOneAfterAnother() throws Exception {
+        final PeerServer server = start(1);
+
+        // Each finished upload hands its slot back
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, send(server, "GET", "/blobs/" + CHECKSUM).statusCode());
+        }
+    }
+
+    @Test
+    public void unknownBlobIsNotFound() throws Exception {
+        final PeerServer server = start(1);
+
+        assertEquals(404, send(server, "GET", "/blobs/" + Hashing.sha256().hashString("other", StandardCharsets.UTF_8)).statusCode());
+        assertEquals(404, send(server, "GET", "/blobs/not-a-checksum").statusCode());
+        assertEquals(404, send(server, "GET", "/servermanifest.json").statusCode());
+    }
+
+    @Test
+    public void onlyGetIsServed() throws Exception {
+        final PeerServer server = start(1);
+
+        assertEquals(404, send(server, "DELETE", "/blobs/" + CHECKSUM).statusCode());
+    }
+
+    @Test
+    public void republishingReplacesServedFiles() throws Exception {
+        final PeerServer server = start(1);
+        server.publish(Map.of());
+
+        assertEquals(404, send(server, "GET", "/blobs/" + CHECKSUM).statusCode());
+    }
+
+    @Test
+    public void turnsAwayPeersWhenUploadsAreExhausted() throws Exception {
+        final PeerServer server = start(0);
+
+        final HttpResponse<String> response = send(server, "GET", "/blobs/" + CHECKSUM);
+        assertEquals(503, response.statusCode());
+        assertTrue(response.headers().firstValue("Retry-After").isPresent());
+    }
+
+    private PeerServer start(final int maxUploads) throws IOException {
+        final Path file = Files.writeString(dir.resolve("mod.jar"), CONTENTS);
+        final PeerServer server = PeerServer.start(0, maxUploads);
+        server.publish(Map.of(CHECKSUM, file));
+        return server;
+    }
+
+    private HttpResponse<String> send(final PeerServer server, final String method, final String path) throws Exception {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + path))
+                .method(method, HttpRequest.BodyPublishers.noBody())
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,58 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ModDirectoryWatcherTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void rebuildsOnceChangesSettle() throws IOException, InterruptedException {
+        final Semaphore rebuilds = new Semaphore(0);
+        final ModDirectoryWatcher watcher = ModDirectoryWatcher.start(dir, rebuilds::release);
+        assertNotNull(watcher);
+        try {
+            for (int i = 0; i < 5; i++) {
+                Files.writeString(dir.resolve("mod" + i + ".jar"), "mod");
+            }
+            assertTrue(rebuilds.tryAcquire(10, TimeUnit.SECONDS));
+            assertFalse(rebuilds.tryAcquire(3, TimeUnit.SECONDS), "one rebuild for the whole batch of changes");
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void ignoresHiddenAndTemporaryFiles() throws IOException, InterruptedException {
+        final Semaphore rebuilds = new Semaphore(0);
+        final ModDirectoryWatcher watcher = ModDirectoryWatcher.start(dir, rebuilds::release);
+        assertNotNull(watcher);
+        try {
+            Files.writeString(dir.resolve(".hidden"), "state");
+            Files.writeString(dir.resolve("mod.jar.tmp"), "partial");
+            assertFalse(rebuilds.tryAcquire(4, TimeUnit.SECONDS));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void stopsRebuildingOnceClosed() throws IOException, InterruptedException {
+        final Semaphore rebuilds = new Semaphore(0);
+        final ModDirectoryWatcher watcher = ModDirectoryWatcher.start(dir, rebuilds::release);
+        assertNotNull(watcher);
+        watcher.close();
+
+        Files.writeString(dir.resolve("mod.jar"), "mod");
+        assertFalse(rebuilds.tryAcquire(4, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,325 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestHandlerTest {
+    private static final int FILE_SIZE = 1024 * 1024 + 17;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void filesAreSentFromDiskWithZeroCopy() throws IOException {
+        final byte[] contents = randomBytes(FILE_SIZE);
+        final EmbeddedChannel channel = channel(write("mod.jar", contents), true);
+        channel.writeInbound(TestPacks.get("/files/mod.jar"));
+        channel.runPendingTasks();
+
+        final HttpResponse resp = channel.readOutbound();
+        assertEquals(HttpResponseStatus.OK, resp.status());
+        assertFalse(resp instanceof FullHttpResponse, "file body must not be buffered into the response");
+        assertEquals(FILE_SIZE, HttpUtil.getContentLength(resp));
+
+        final DefaultFileRegion region = channel.readOutbound();
+        assertEquals(FILE_SIZE, region.count());
+        region.release();
+        final LastHttpContent last = channel.readOutbound();
+        assertEquals(0, last.content().readableBytes());
+        assertNull(channel.readOutbound());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void filesAreStreamedInBoundedChunks() throws Exception {
+        final byte[] contents = randomBytes(FILE_SIZE);
+        final EmbeddedChannel channel = channel(write("mod.jar", contents), false);
+        channel.writeInbound(TestPacks.get("/files/mod.jar"));
+        channel.runPendingTasks();
+
+        final HttpResponse resp = channel.readOutbound();
+        assertFalse(resp instanceof FullHttpResponse, "file body must not be buffered into the response");
+        final HttpChunkedInput input = channel.readOutbound();
+        final ByteBuf received = Unpooled.buffer(FILE_SIZE);
+        try {
+            HttpContent chunk;
+            while ((chunk = input.readChunk(ByteBufAllocator.DEFAULT)) != null) {
+                assertTrue(chunk.content().readableBytes() <= 64 * 1024, "chunk of " + chunk.content().readableBytes() + " bytes");
+                received.writeBytes(chunk.content());
+                chunk.release();
+            }
+            assertArrayEquals(contents, ByteBufUtil.getBytes(received));
+        } finally {
+            input.close();
+            received.release();
+        }
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void parsesClosedRange() {
+        assertEquals(new RequestHandler.ByteRange(0, 99), RequestHandler.ByteRange.parse("bytes=0-99", 1000));
+        assertEquals(new RequestHandler.ByteRange(10, 10), RequestHandler.ByteRange.parse("bytes= 10 - 10 ", 1000));
+        // An end past the file is clamped to the last byte
+        assertEquals(new RequestHandler.ByteRange(900, 999), RequestHandler.ByteRange.parse("bytes=900-5000", 1000));
+    }
+
+    @Test
+    public void parsesOpenEndedRange() {
+        assertEquals(new RequestHandler.ByteRange(500, 999), RequestHandler.ByteRange.parse("bytes=500-", 1000));
+        assertEquals(new RequestHandler.ByteRange(999, 999), RequestHandler.ByteRange.parse("bytes=999-", 1000));
+    }
+
+    @Test
+    public void parsesSuffixRange() {
+        assertEquals(new RequestHandler.ByteRange(900, 999), RequestHandler.ByteRange.parse("bytes=-100", 1000));
+        // A suffix longer than the file selects all of it
+        assertEquals(new RequestHandler.ByteRange(0, 999), RequestHandler.ByteRange.parse("bytes=-5000", 1000));
+        assertEquals(100, RequestHandler.ByteRange.parse("bytes=-100", 1000).length());
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() {
+        assertSame(RequestHandler.ByteRange.UNSATISFIABLE, RequestHandler.ByteRange.parse("bytes=1000-", 1000));
+        assertSame(RequestHandler.ByteRange.UNSATISFIABLE, RequestHandler.ByteRange.parse("bytes=2000-3000", 1000));
+        assertSame(RequestHandler.ByteRange.UNSATISFIABLE, RequestHandler.ByteRange.parse("bytes=-0", 1000));
+        assertSame(RequestHandler.ByteRange.UNSATISFIABLE, RequestHandler.ByteRange.parse("bytes=-10", 0));
+    }
+
+    @Test
+    public void ignoresMalformedAndMultipleRanges() {
+        assertNull(RequestHandler.ByteRange.parse("bytes=0-10,20-30", 1000));
+        assertNull(RequestHandler.ByteRange.parse("items=0-10", 1000));
+        assertNull(RequestHandler.ByteRange.parse("bytes=10", 1000));
+        assertNull(RequestHandler.ByteRange.parse("bytes=a-b", 1000));
+        assertNull(RequestHandler.ByteRange.parse("bytes=20-10", 1000));
+    }
+
+    @Test
+    public void sendsRequestedRange() throws IOException {
+        final EmbeddedChannel channel = channel(write("mod.jar", randomBytes(FILE_SIZE)), true);
+        final FullHttpRequest request = TestPacks.get("/files/mod.jar");
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=-100");
+        channel.writeInbound(request);
+        channel.runPendingTasks();
+
+        final HttpResponse resp = channel.readOutbound();
+        assertEquals(HttpResponseStatus.PARTIAL_CONTENT, resp.status());
+        assertEquals("bytes " + (FILE_SIZE - 100) + "-" + (FILE_SIZE - 1) + "/" + FILE_SIZE, resp.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        final DefaultFileRegion region = channel.readOutbound();
+        assertEquals(FILE_SIZE - 100, region.position());
+        assertEquals(100, region.count());
+        region.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void refusesUnsatisfiableRange() throws IOException {
+        final EmbeddedChannel channel = channel(write("mod.jar", randomBytes(FILE_SIZE)), true);
+        final FullHttpRequest request = TestPacks.get("/files/mod.jar");
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=" + FILE_SIZE + "-");
+        channel.writeInbound(request);
+        channel.runPendingTasks();
+
+        final FullHttpResponse resp = channel.readOutbound();
+        assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, resp.status());
+        assertEquals("bytes */" + FILE_SIZE, resp.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        resp.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void sendsWholeFileWhenIfRangeDoesNotMatch() throws IOException {
+        final EmbeddedChannel channel = channel(write("mod.jar", randomBytes(FILE_SIZE)), true);
+        final FullHttpRequest request = TestPacks.get("/files/mod.jar");
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=100-");
+        request.headers().set(HttpHeaderNames.IF_RANGE, "\"stale\"");
+        channel.writeInbound(request);
+        channel.runPendingTasks();
+
+        final HttpResponse resp = channel.readOutbound();
+        assertEquals(HttpResponseStatus.OK, resp.status());
+        assertEquals(FILE_SIZE, HttpUtil.getContentLength(resp));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void manifestIsServedWhileFileExecutorIsBlocked() throws Exception {
+        final ServerFileManager manager = TestPacks.fileManager(dir, write("mod.jar", randomBytes(FILE_SIZE)));
+        final ExecutorService fileExecutor = Executors.newSingleThreadExecutor();
+        final CountDownLatch diskStalled = new CountDownLatch(1);
+        try {
+            fileExecutor.execute(() -> awaitQuietly(diskStalled));
+            final EmbeddedChannel download = new EmbeddedChannel(new RequestHandler(manager, new ServerMetrics(), false, null, fileExecutor, true));
+            final EmbeddedChannel manifest = new EmbeddedChannel(new RequestHandler(manager, new ServerMetrics(), false, null, fileExecutor, true));
+
+            download.writeInbound(TestPacks.get("/files/mod.jar"));
+            download.runPendingTasks();
+            assertNull(download.readOutbound(), "the file can't be opened while the disk is stalled");
+
+            manifest.writeInbound(TestPacks.get("/servermanifest.json"));
+            final FullHttpResponse manifestResp = manifest.readOutbound();
+            assertEquals(HttpResponseStatus.OK, manifestResp.status());
+            manifestResp.release();
+
+            diskStalled.countDown();
+            final HttpResponse fileResp = awaitOutbound(download);
+            assertEquals(HttpResponseStatus.OK, fileResp.status());
+            download.finishAndReleaseAll();
+            manifest.finishAndReleaseAll();
+        } finally {
+            diskStalled.countDown();
+            fileExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        final ServerFileManager manager = TestPacks.fileManager(dir, write("mod.jar", randomBytes(FILE_SIZE)));
+        final ExecutorService fileExecutor = Executors.newSingleThreadExecutor();
+        final CountDownLatch diskStalled = new CountDownLatch(1);
+        try {
+            fileExecutor.execute(() -> awaitQuietly(diskStalled));
+            final EmbeddedChannel channel = new EmbeddedChannel(new RequestHandler(manager, new ServerMetrics(), false, null, fileExecutor, true));
+            channel.writeInbound(TestPacks.get("/files/mod.jar"));
+            // A pipelined request has to wait for the response before it, even though it needs no disk access
+            channel.writeInbound(TestPacks.get("/servermanifest.json"));
+            assertNull(channel.readOutbound());
+
+            diskStalled.countDown();
+            final HttpResponse fileResp = awaitOutbound(channel);
+            assertFalse(fileResp instanceof FullHttpResponse);
+            ((DefaultFileRegion) channel.readOutbound()).release();
+            assertTrue(channel.readOutbound() instanceof LastHttpContent);
+            final FullHttpResponse manifestResp = channel.readOutbound();
+            assertEquals("application/json", manifestResp.headers().get(HttpHeaderNames.CONTENT_TYPE));
+            manifestResp.release();
+            channel.finishAndReleaseAll();
+        } finally {
+            diskStalled.countDown();
+            fileExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void turnsAwayRequestsWhenFileExecutorIsFull() throws Exception {
+        final ServerFileManager manager = TestPacks.fileManager(dir, write("mod.jar", randomBytes(FILE_SIZE)));
+        final ThreadPoolExecutor fileExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1));
+        final CountDownLatch diskStalled = new CountDownLatch(1);
+        try {
+            fileExecutor.execute(() -> awaitQuietly(diskStalled));
+            fileExecutor.execute(() -> awaitQuietly(diskStalled));
+            final EmbeddedChannel channel = new EmbeddedChannel(new RequestHandler(manager, new ServerMetrics(), false, null, fileExecutor, true));
+            channel.writeInbound(TestPacks.get("/files/mod.jar"));
+
+            final FullHttpResponse resp = channel.readOutbound();
+            assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, resp.status());
+            assertNotNull(resp.headers().get(HttpHeaderNames.RETRY_AFTER));
+            resp.release();
+            channel.finishAndReleaseAll();
+        } finally {
+            diskStalled.countDown();
+            fileExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void packWaitsForNextFileToOpen() throws Exception {
+        final ServerFileManager manager = TestPacks.fileManager(dir, write("a.jar", randomBytes(FILE_SIZE)), write("b.jar", randomBytes(FILE_SIZE)));
+        // Runs nothing until the test does, like a stalled disk
+        final Queue<Runnable> fileTasks = new ArrayDeque<>();
+        final EmbeddedChannel channel = new EmbeddedChannel(new ChunkedWriteHandler(), new RequestHandler(manager, new ServerMetrics(), false, null, fileTasks::add, false));
+        channel.writeInbound(TestPacks.get("/pack"));
+        fileTasks.remove().run();
+        channel.runPendingTasks();
+
+        final HttpResponse resp = channel.readOutbound();
+        assertEquals(HttpResponseStatus.OK, resp.status());
+        long sent = readContent(channel);
+        assertTrue(sent > FILE_SIZE && sent < HttpUtil.getContentLength(resp), "only the first file can be sent before the second is open");
+        assertEquals(1, fileTasks.size());
+
+        fileTasks.remove().run();
+        channel.runPendingTasks();
+        sent += readContent(channel);
+        assertEquals(HttpUtil.getContentLength(resp), sent);
+        assertTrue(fileTasks.isEmpty());
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * @return the number of bytes of content written so far
+     */
+    private static long readContent(final EmbeddedChannel channel) {
+        long length = 0;
+        HttpContent content;
+        while ((content = channel.readOutbound()) != null) {
+            length += content.content().readableBytes();
+            content.release();
+        }
+        return length;
+    }
+
+    /**
+     * Runs the channel's tasks until the reply to an offloaded request has been written.
+     */
+    private static <T> T awaitOutbound(final EmbeddedChannel channel) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            channel.runPendingTasks();
+            final T message = channel.readOutbound();
+            if (message != null) {
+                return message;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No response within 10 seconds");
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private EmbeddedChannel channel(final Path file, final boolean zeroCopy) {
+        final ServerFileManager manager = TestPacks.fileManager(dir, file);
+        // A direct file executor, so offloaded work only has to wait for the channel's own pending tasks
+        return new EmbeddedChannel(new RequestHandler(manager, new ServerMetrics(), false, null, Runnable::run, zeroCopy));
+    }
+
+    private Path write(final String name, final byte[] contents) throws IOException {
+        return Files.write(dir.resolve(name), contents);
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,64 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerFileManagerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void blobsAreServedFromTheFileThatWasHashed() throws IOException {
+        // The same name in both mod directories, with different contents
+        final Path serverMod = write("servermods", "mod.jar", "server");
+        final Path clientMod = write("clientmods", "mod.jar", "client");
+        final ServerFileManager manager = TestPacks.fileManager(dir, serverMod, clientMod);
+
+        assertEquals(serverMod, manager.findBlob(sha256("server")).path());
+        assertEquals(clientMod, manager.findBlob(sha256("client")).path());
+    }
+
+    @Test
+    public void filesAreFoundByName() throws IOException {
+        final Path mod = write("servermods", "mod.jar", "server");
+        final ServerFileManager manager = TestPacks.fileManager(dir, mod);
+
+        final ServerFileManager.ServedFile file = manager.findFile("mod.jar");
+        assertEquals(mod, file.path());
+        assertEquals(sha256("server"), file.data().checksum());
+        assertNull(manager.findFile("missing.jar"));
+        assertNull(manager.findBlob(sha256("missing")));
+    }
+
+    @Test
+    public void manifestListsLegacyChecksumForOlderClients() throws IOException {
+        final Path mod = write("servermods", "mod.jar", "server");
+        TestPacks.fileManager(dir, mod);
+
+        final JsonObject file = JsonParser.parseString(Files.readString(dir.resolve("servermanifest.json"))).getAsJsonObject()
+                .getAsJsonArray("files").get(0).getAsJsonObject();
+        assertEquals(FileChecksumValidator.computeLegacyChecksumFor(mod).toString().toUpperCase(Locale.ROOT), file.get("checksum").getAsString());
+        assertEquals(sha256("server").toString().toUpperCase(Locale.ROOT), file.get("sha256").getAsString());
+    }
+
+    private Path write(final String directory, final String name, final String contents) throws IOException {
+        return Files.writeString(Files.createDirectories(dir.resolve(directory)).resolve(name), contents);
+    }
+
+    private static HashCode sha256(final String contents) {
+        return Hashing.sha256().hashString(contents, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.electronwill.nightconfig.core.file.FileConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimpleHttpServerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void defaultConfigMatchesBuiltInDefaults() throws IOException {
+        final Path file = dir.resolve("serverpacklocator.toml");
+        try (InputStream defaults = Objects.requireNonNull(getClass().getResourceAsStream("/defaultserverconfig.toml"))) {
+            Files.copy(defaults, file);
+        }
+        assertEquals(settings(""), settings(Files.readString(file)));
+    }
+
+    @Test
+    public void emptyConfigUsesDefaults() throws IOException {
+        final SimpleHttpServer.Settings settings = settings("");
+        final int cores = Runtime.getRuntime().availableProcessors();
+        assertEquals(Math.max(1, Math.min(4, cores / 2)), settings.ioThreads());
+        assertEquals(4, settings.fileThreads());
+        assertTrue(settings.nativeTransport());
+        assertEquals(128, settings.backlog());
+        assertTrue(settings.tcpNoDelay());
+        assertEquals(256 * 1024, settings.writeBufferLowWaterMark());
+        assertEquals(1024 * 1024, settings.writeBufferHighWaterMark());
+        assertTrue(settings.http2());
+        assertFalse(settings.h2c());
+    }
+
+    @Test
+    public void readsNetworkSection() throws IOException {
+        final SimpleHttpServer.Settings settings = settings("""
+                [server.network]
+                ioThreads = 3
+                fileThreads = 8
+                nativeTransport = false
+                backlog = 512
+                tcpNoDelay = false
+                writeBufferLowKb = 64
+                writeBufferHighKb = 128
+                http2 = false
+                h2c = true
+                """);
+        assertEquals(new SimpleHttpServer.Settings(3, 8, false, 512, false, 64 * 1024, 128 * 1024, false, true), settings);
+    }
+
+    @Test
+    public void clampsInvalidValues() throws IOException {
+        final SimpleHttpServer.Settings settings = settings("""
+                [server.network]
+                ioThreads = 0
+                fileThreads = -2
+                writeBufferLowKb = 512
+                writeBufferHighKb = 128
+                """);
+        assertEquals(1, settings.ioThreads());
+        assertEquals(1, settings.fileThreads());
+        // Netty refuses a high water mark below the low one
+        assertEquals(512 * 1024, settings.writeBufferHighWaterMark());
+    }
+
+    private SimpleHttpServer.Settings settings(final String toml) throws IOException {
+        final Path file = Files.writeString(dir.resolve("config.toml"), toml);
+        try (FileConfig config = FileConfig.of(file)) {
+            config.load();
+            return SimpleHttpServer.Settings.fromConfig(config);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
+import cpw.mods.forge.serverpacklocator.ModMetadataIndex;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import net.minecraftforge.forgespi.locating.IModFile;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds file managers over plain files for tests. The files are presented as libraries, so that no mod metadata has
+ * to be read from them. Public so that client tests can check what they read against what the server writes.
+ */
+public final class TestPacks {
+    private TestPacks() {
+    }
+
+    static IModFile modFile(final Path path) {
+        return (IModFile) Proxy.newProxyInstance(IModFile.class.getClassLoader(), new Class<?>[]{IModFile.class}, (proxy, method, args) -> switch (method.getName()) {
+            case "getFileName" -> path.getFileName().toString();
+            case "getFilePath" -> path;
+            case "getType" -> IModFile.Type.LIBRARY;
+            case "toString" -> path.toString();
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "equals" -> proxy == args[0];
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    static ServerFileManager fileManager(final Path stateDir, final Path... files) {
+        final ServerFileManager manager = new ServerFileManager(stateDir.resolve("servermanifest.json"), "1.0", List.of(),
+                ChecksumCache.load(stateDir), ModMetadataIndex.load(stateDir), null, new ServerMetrics(), null);
+        manager.buildManifest(List.of(files).stream().map(TestPacks::modFile).toList());
+        return manager;
+    }
+
+    /**
+     * @return the whole tar archive the server would send from {@code /pack}
+     */
+    public static byte[] packArchive(final Path stateDir, final Path... files) throws Exception {
+        final ServerFileManager manager = fileManager(stateDir, files);
+        final PackArchive input = PackArchive.of(manager.findPackFiles(Set.of()), Runnable::run, () -> {});
+        final ByteBuf archive = Unpooled.buffer();
+        try {
+            while (!input.isEndOfInput()) {
+                final ByteBuf chunk = input.readChunk(ByteBufAllocator.DEFAULT);
+                archive.writeBytes(chunk);
+                chunk.release();
+            }
+            if (archive.readableBytes() != input.length()) {
+                throw new IllegalStateException("Archive is " + archive.readableBytes() + " bytes, but announced " + input.length());
+            }
+            return ByteBufUtil.getBytes(archive);
+        } finally {
+            input.close();
+            archive.release();
+        }
+    }
+
+    static FullHttpRequest get(final String uri) {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+}